@@ -0,0 +1,135 @@
+package ml.dent.bench;
+
+import com.sun.management.OperatingSystemMXBean;
+import io.netty.util.concurrent.Future;
+import ml.dent.net.TransportContext;
+import ml.dent.util.LatencyHistogram;
+import ml.dent.video.StreamStats;
+import ml.dent.video.VideoServer;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds how many streams this machine can run. For every stream count it starts that many
+ * {@link VideoServer}s encoding a videotestsrc picture, all sending to a relay stand-in on the
+ * loopback interface that speaks the bounce server handshake, and prints one line per stream count:
+ * CPU use, delivered frame rate and bitrate, dropped samples, pipeline and send latency, and the
+ * longest stall seen by the receiving end.
+ *
+ * <p>Configured with system properties:
+ * <ul>
+ *     <li>streams: comma separated stream counts to run, default 1,2,4,8</li>
+ *     <li>warmup: seconds each run is left to settle before measuring, default 5</li>
+ *     <li>duration: seconds each run is measured for, default 20</li>
+ *     <li>pattern: the videotestsrc pattern, default ball so the encoder has motion to work on</li>
+ *     <li>bitrate: the encoder bitrate in kbit/s, default the encoder's own</li>
+ *     <li>ioThreads: the number of event loop threads, default Netty's</li>
+ * </ul>
+ *
+ * <pre>java -Dstreams=1,4,16 -cp target/benchmarks.jar ml.dent.bench.LoadTest</pre>
+ */
+public class LoadTest {
+
+    private static final String AUTHENTICATION_MESSAGE = "hi";
+
+    public static void main(String[] args) throws Exception {
+        String[] counts = System.getProperty("streams", "1,2,4,8").split(",");
+        long warmup = Long.getLong("warmup", 5);
+        long duration = Long.getLong("duration", 20);
+        String pattern = System.getProperty("pattern", "ball");
+        Integer bitrate = Integer.getInteger("bitrate");
+
+        VideoServer.initGstreamer();
+        TransportContext transport = new TransportContext(Integer.getInteger("ioThreads", 0));
+        LoopbackServer relay = new LoopbackServer(transport, true, AUTHENTICATION_MESSAGE);
+        int port = relay.start();
+
+        System.out.println();
+        System.out.println(String.format("%7s %7s %7s %9s %9s %8s %10s %10s %10s %9s",
+                "streams", "cpu%", "cpu%/c", "fps", "Mbit/s", "drop%", "pipe p50", "pipe p99", "send p99", "max gap"));
+        for (String count : counts) {
+            int streams = Integer.parseInt(count.trim());
+            if (streams < 1 || streams > 255) {
+                System.out.println("Skipping " + streams + " streams, bounce server channels only go up to 255");
+                continue;
+            }
+            run(transport, relay, port, streams, pattern, bitrate, warmup, duration);
+        }
+
+        relay.stop();
+        transport.shutdownGracefully().sync();
+    }
+
+    private static void run(TransportContext transport, LoopbackServer relay, int port, int streams, String pattern,
+                            Integer bitrate, long warmup, long duration) throws InterruptedException {
+        List<VideoServer> servers = new ArrayList<>();
+        for (int i = 0; i < streams; i++) {
+            VideoServer server = new VideoServer("127.0.0.1", port);
+            server.setTransportContext(transport);
+            server.setBounceChannel(i + 1);
+            server.setAuthenticationMessage(AUTHENTICATION_MESSAGE);
+            server.setTestSource(pattern);
+            server.getEncoderSettings().setBitrate(bitrate);
+            server.connect().sync();
+            server.startStream();
+            servers.add(server);
+        }
+
+        TimeUnit.SECONDS.sleep(warmup);
+
+        long samples = 0;
+        long dropped = 0;
+        for (int i = 0; i < streams; i++) {
+            VideoServer server = servers.get(i);
+            StreamStats stats = server.getStats();
+            stats.getPipelineLatency().reset();
+            stats.getSendLatency().reset();
+            samples -= stats.getSamples();
+            dropped -= server.getDroppedFrames();
+            relay.getReceiver(i + 1).resetMaxGap();
+        }
+        long received = -relay.getReceivedBytes();
+        OperatingSystemMXBean os = (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        long cpu = -os.getProcessCpuTime();
+        long start = System.nanoTime();
+
+        TimeUnit.SECONDS.sleep(duration);
+
+        cpu += os.getProcessCpuTime();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        received += relay.getReceivedBytes();
+        long pipelineP50 = 0;
+        long pipelineP99 = 0;
+        long sendP99 = 0;
+        long maxGap = 0;
+        for (int i = 0; i < streams; i++) {
+            VideoServer server = servers.get(i);
+            StreamStats stats = server.getStats();
+            samples += stats.getSamples();
+            dropped += server.getDroppedFrames();
+            // The worst stream is what limits how many can run
+            LatencyHistogram pipeline = stats.getPipelineLatency();
+            pipelineP50 = Math.max(pipelineP50, pipeline.getQuantileMicros(0.5));
+            pipelineP99 = Math.max(pipelineP99, pipeline.getQuantileMicros(0.99));
+            sendP99 = Math.max(sendP99, stats.getSendLatency().getQuantileMicros(0.99));
+            maxGap = Math.max(maxGap, relay.getReceiver(i + 1).getMaxGapNanos());
+        }
+
+        double cpuPercent = cpu / 1e9 / seconds * 100;
+        System.out.println(String.format("%7d %7.1f %7.1f %9.1f %9.2f %8.2f %8.1fms %8.1fms %8.1fms %7.1fms",
+                streams, cpuPercent, cpuPercent / os.getAvailableProcessors(), samples / seconds,
+                received * 8 / seconds / 1e6, samples == 0 ? 0 : dropped * 100.0 / samples,
+                pipelineP50 / 1e3, pipelineP99 / 1e3, sendP99 / 1e3, maxGap / 1e6));
+
+        for (VideoServer server : servers) {
+            server.stopStream();
+            Future<?> closed = server.disconnect();
+            if (closed != null) {
+                closed.sync();
+            }
+        }
+    }
+}
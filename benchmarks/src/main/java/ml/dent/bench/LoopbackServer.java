@@ -0,0 +1,173 @@
+package ml.dent.bench;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import ml.dent.net.TransportContext;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A server on the loopback interface that throws away everything it receives, so benchmarks can
+ * write to a real socket without a relay. If relay mode is on, every connection first goes through
+ * the bounce server handshake: the server sends its version string, waits for the authentication
+ * message and the channel, and answers READY. What arrives afterwards is counted per channel
+ * instead of being passed on, so the server doubles as the receiving end of a relay.
+ */
+public class LoopbackServer {
+
+    public static final String VERSION_STRING = "2-bench\n";
+
+    private final TransportContext transport;
+    private final boolean          relay;
+    private final int              handshakeLength;
+
+    private final ConcurrentMap<Integer, Receiver> receivers = new ConcurrentHashMap<>();
+
+    private Channel serverChannel;
+
+    /**
+     * @param relay                 Whether to run the bounce server handshake on every connection
+     * @param authenticationMessage The message clients authenticate with, only used in relay mode
+     */
+    public LoopbackServer(TransportContext transport, boolean relay, String authenticationMessage) {
+        this.transport = transport;
+        this.relay = relay;
+        // The channel is sent as two hex digits, as announced by the version string
+        handshakeLength = authenticationMessage.length() + 2;
+    }
+
+    /**
+     * @return The port the server is listening on
+     */
+    public int start() throws InterruptedException {
+        ServerBootstrap boot = new ServerBootstrap();
+        boot.group(transport.group()).channel(transport.serverSocketChannelClass())
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new DiscardHandler());
+                    }
+                });
+        serverChannel = boot.bind("127.0.0.1", 0).sync().channel();
+        return ((InetSocketAddress) serverChannel.localAddress()).getPort();
+    }
+
+    public void stop() throws InterruptedException {
+        if (serverChannel != null) {
+            serverChannel.close().sync();
+        }
+    }
+
+    /**
+     * @return The number of bytes received on all connections, not counting the handshake
+     */
+    public long getReceivedBytes() {
+        long res = 0;
+        for (Receiver receiver : receivers.values()) {
+            res += receiver.getBytes();
+        }
+        return res;
+    }
+
+    /**
+     * @param channel The channel clients announced in the handshake, or 0 if relay mode is off
+     * @return What was received on the channel, by every connection that used it
+     */
+    public Receiver getReceiver(int channel) {
+        return receivers.computeIfAbsent(channel, key -> new Receiver());
+    }
+
+    /**
+     * What a channel received. Only the event loop of a connection updates it, other threads may
+     * read it at any time.
+     */
+    public static class Receiver {
+
+        private final LongAdder bytes = new LongAdder();
+
+        private          long lastRead;
+        private volatile long maxGapNanos;
+
+        private void read(int length) {
+            bytes.add(length);
+            long now = System.nanoTime();
+            if (lastRead != 0 && now - lastRead > maxGapNanos) {
+                maxGapNanos = now - lastRead;
+            }
+            lastRead = now;
+        }
+
+        public long getBytes() {
+            return bytes.sum();
+        }
+
+        /**
+         * @return The longest time between two reads since the last reset, a stall anywhere
+         * between the source and the socket shows up here
+         */
+        public long getMaxGapNanos() {
+            return maxGapNanos;
+        }
+
+        public void resetMaxGap() {
+            maxGapNanos = 0;
+        }
+    }
+
+    private class DiscardHandler extends ChannelInboundHandlerAdapter {
+
+        private int handshakeRemaining = relay ? handshakeLength : 0;
+        // The last two bytes of the handshake are the channel in hex
+        private int channel;
+
+        private Receiver receiver = relay ? null : getReceiver(0);
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            if (relay) {
+                ctx.writeAndFlush(Unpooled.copiedBuffer(VERSION_STRING, CharsetUtil.UTF_8));
+            }
+            super.channelActive(ctx);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            try {
+                ByteBuf buf = (ByteBuf) msg;
+                int length = buf.readableBytes();
+                while (handshakeRemaining > 0 && length > 0) {
+                    byte b = buf.readByte();
+                    length--;
+                    if (--handshakeRemaining < 2) {
+                        channel = channel << 4 | Character.digit(b, 16);
+                    }
+                    if (handshakeRemaining == 0) {
+                        receiver = getReceiver(channel);
+                        ctx.writeAndFlush(Unpooled.copiedBuffer("READY\n", CharsetUtil.UTF_8));
+                    }
+                }
+                if (length > 0) {
+                    receiver.read(length);
+                }
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package ml.dent.net;
+
+import ml.dent.bench.LoopbackServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long a {@link SimpleNetworkClient} takes to connect to a relay on the loopback
+ * interface and complete the bounce server handshake, until its connect future succeeds. With the
+ * bounce server protocol off it measures a plain TCP connect, which the handshake adds to.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Dio.netty.leakDetection.level=disabled")
+public class BounceHandshakeBenchmark {
+
+    private static final String AUTHENTICATION_MESSAGE = "hi";
+
+    @Param({"true", "false"})
+    private boolean bounceServerProtocol;
+
+    private TransportContext transport;
+    private LoopbackServer   relay;
+    private int              port;
+
+    @Setup(Level.Trial)
+    public void setup() throws InterruptedException {
+        transport = new TransportContext(2);
+        relay = new LoopbackServer(transport, bounceServerProtocol, AUTHENTICATION_MESSAGE);
+        port = relay.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        relay.stop();
+        transport.shutdownGracefully().sync();
+    }
+
+    @Benchmark
+    public void connect() throws InterruptedException {
+        SimpleNetworkClient client = new SimpleNetworkClient("127.0.0.1", port, 1);
+        client.setTransportContext(transport);
+        client.setBounceServerProtocol(bounceServerProtocol);
+        client.setAuthenticationMessage(AUTHENTICATION_MESSAGE);
+        client.connect().sync();
+        client.disconnect().sync();
+    }
+}
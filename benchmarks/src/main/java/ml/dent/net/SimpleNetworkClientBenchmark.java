@@ -0,0 +1,95 @@
+package ml.dent.net;
+
+import io.netty.buffer.ByteBuf;
+import ml.dent.bench.LoopbackServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the write paths of {@link SimpleNetworkClient} against a server on the loopback
+ * interface that discards what it receives: single bytes handed to the write buffer, byte arrays
+ * copied into one buffer, and buffers written as they are, each with and without buffering. The
+ * benchmark thread writes like the appsink threads do, from outside the event loop.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Dio.netty.leakDetection.level=disabled")
+public class SimpleNetworkClientBenchmark {
+
+    @Param({"true", "false"})
+    private boolean buffering;
+
+    @Param({"64", "1316"})
+    private int writeSize;
+
+    // How many writes go out between explicit flushes
+    @Param({"16"})
+    private int writesPerFlush;
+
+    private TransportContext    transport;
+    private LoopbackServer      sink;
+    private SimpleNetworkClient client;
+    private byte[]              data;
+    private int                 unflushed;
+
+    @Setup(Level.Trial)
+    public void setup() throws InterruptedException {
+        transport = new TransportContext(2);
+        sink = new LoopbackServer(transport, false, "");
+        int port = sink.start();
+
+        client = new SimpleNetworkClient("127.0.0.1", port, -1, buffering);
+        client.setTransportContext(transport);
+        client.setBounceServerProtocol(false);
+        client.connect().sync();
+
+        data = new byte[writeSize];
+        for (int i = 0; i < writeSize; i++) {
+            data[i] = (byte) i;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        client.flush();
+        client.disconnect().sync();
+        sink.stop();
+        transport.shutdownGracefully().sync();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(64)
+    public void writeBytes() {
+        for (int i = 0; i < 64; i++) {
+            client.write(data[i % writeSize]);
+        }
+        flushEvery();
+    }
+
+    @Benchmark
+    public void writeArray() {
+        client.write(data, 0, writeSize);
+        flushEvery();
+    }
+
+    @Benchmark
+    public void writeByteBuf() {
+        ByteBuf buf = client.getAllocator().ioBuffer(writeSize, writeSize);
+        buf.writeBytes(data);
+        client.writeOwned(buf);
+        flushEvery();
+    }
+
+    // Waits for the flush on the event loop, so the writes handed to it are included in the
+    // measurement and cannot pile up in its task queue
+    private void flushEvery() {
+        if (++unflushed == writesPerFlush) {
+            unflushed = 0;
+            client.getChannel().eventLoop().submit(client::flushInEventLoop).syncUninterruptibly();
+        }
+    }
+}
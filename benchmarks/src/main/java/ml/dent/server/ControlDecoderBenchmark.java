@@ -0,0 +1,84 @@
+package ml.dent.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.CharsetUtil;
+import ml.dent.util.Markers;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast {@link ControlDecoder} turns the bytes of a control connection into commands,
+ * in an embedded channel so no sockets are involved. Each operation decodes a burst like the ones a
+ * client sends while setting up and driving streams: stream selections, pings and start/stop
+ * commands, plus a config that arrives split over two reads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Dio.netty.leakDetection.level=disabled")
+public class ControlDecoderBenchmark {
+
+    private static final String CONFIG = "{\"host\":\"relay.example.com\",\"port\":1111,\"channel\":1,"
+            + "\"cameraType\":\"WEBCAM\",\"source\":\"/dev/video0\",\"h264Encoded\":false,"
+            + "\"bitrate\":2048,\"speedPreset\":\"ultrafast\",\"keyIntMax\":30,\"gopCache\":true}";
+
+    private EmbeddedChannel channel;
+
+    private ByteBuf commands;
+    private ByteBuf configStart;
+    private ByteBuf configEnd;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        channel = new EmbeddedChannel(new ControlDecoder());
+
+        ByteBuf buf = Unpooled.buffer();
+        for (int stream = 0; stream < 4; stream++) {
+            buf.writeByte(Markers.SELECT_STREAM).writeByte(stream);
+            buf.writeByte(Markers.PING_REQUEST);
+            buf.writeByte(Markers.START_VIDEO);
+            buf.writeByte(Markers.STATS_REQUEST);
+            buf.writeByte(Markers.STOP_VIDEO);
+        }
+        commands = Unpooled.unreleasableBuffer(buf);
+
+        byte[] config = CONFIG.getBytes(CharsetUtil.UTF_8);
+        int split = config.length / 2;
+        configStart = Unpooled.unreleasableBuffer(Unpooled.buffer()
+                .writeByte(Markers.SELECT_STREAM).writeByte(1)
+                .writeByte(Markers.CONFIG).writeBytes(config, 0, split));
+        configEnd = Unpooled.unreleasableBuffer(Unpooled.buffer()
+                .writeBytes(config, split, config.length - split).writeByte(Markers.CONFIG));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    public void decodeCommands(Blackhole bh) {
+        channel.writeInbound(commands.duplicate());
+        drain(bh);
+    }
+
+    @Benchmark
+    public void decodeSplitConfig(Blackhole bh) {
+        channel.writeInbound(configStart.duplicate());
+        channel.writeInbound(configEnd.duplicate());
+        drain(bh);
+    }
+
+    private void drain(Blackhole bh) {
+        Object command;
+        while ((command = channel.readInbound()) != null) {
+            bh.consume(command);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package ml.dent.video;
+
+import ml.dent.bench.LoopbackServer;
+import ml.dent.net.TransportContext;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what {@link VideoServer} does with every sample its appsink hands over: counting it,
+ * copying it out of the GStreamer buffer, adding it to the GOP cache and queueing it for the
+ * destination, which writes it to a loopback socket. The samples are synthetic H.264 access units,
+ * a keyframe with its parameter sets followed by delta frames, so no pipeline is needed. The
+ * destination blocks rather than dropping when the socket falls behind, so the score is the rate
+ * samples actually reach the socket, and an iteration that drops anything fails.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Dio.netty.leakDetection.level=disabled")
+public class ForwardBenchmark {
+
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xc0, 0x1f};
+    private static final byte[] IDR = {0, 0, 0, 1, 0x65};
+    private static final byte[] P   = {0, 0, 0, 1, 0x41};
+
+    @Param({"1316", "16384", "131072"})
+    private int sampleSize;
+
+    @Param({"true", "false"})
+    private boolean gopCache;
+
+    @Param({"30"})
+    private int gopLength;
+
+    private TransportContext transport;
+    private LoopbackServer   sink;
+    private VideoServer      videoServer;
+    private ByteBuffer[]     samples;
+    private int              next;
+
+    @Setup(Level.Trial)
+    public void setup() throws InterruptedException {
+        transport = new TransportContext(2);
+        sink = new LoopbackServer(transport, false, "");
+        int port = sink.start();
+
+        videoServer = new VideoServer("127.0.0.1", port);
+        videoServer.setTransportContext(transport);
+        videoServer.setBounceServerProtocol(false);
+        videoServer.setAutoReconnect(false);
+        videoServer.setBackpressurePolicy(BackpressurePolicy.BLOCK);
+        videoServer.setGopCacheEnabled(gopCache);
+        videoServer.connect().sync();
+
+        samples = new ByteBuffer[gopLength];
+        for (int i = 0; i < gopLength; i++) {
+            // GStreamer maps its buffers as direct memory
+            ByteBuffer sample = ByteBuffer.allocateDirect(sampleSize);
+            if (i == 0) {
+                sample.put(SPS).put(IDR);
+            } else {
+                sample.put(P);
+            }
+            while (sample.hasRemaining()) {
+                sample.put((byte) 0x5a);
+            }
+            sample.flip();
+            samples[i] = sample;
+        }
+    }
+
+    // A dropped sample never reached the socket, so it would count towards the score without being sent
+    @TearDown(Level.Iteration)
+    public void checkDropped() {
+        long dropped = videoServer.getDroppedFrames();
+        if (dropped != 0) {
+            throw new IllegalStateException("Dropped " + dropped + " samples, the score does not measure the send path");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        System.out.println();
+        System.out.println("Sent " + sink.getReceivedBytes() + " bytes, dropped " + videoServer.getDroppedFrames() + " samples");
+        videoServer.disconnect().sync();
+        sink.stop();
+        transport.shutdownGracefully().sync();
+    }
+
+    @Benchmark
+    public void forward() {
+        ByteBuffer sample = samples[next];
+        next = next + 1 == gopLength ? 0 : next + 1;
+        sample.rewind();
+        long now = System.nanoTime();
+        videoServer.getStats().sampleProduced(sample.remaining(), 0);
+        videoServer.forward(sample, now);
+    }
+}
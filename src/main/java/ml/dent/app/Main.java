@@ -1,7 +1,10 @@
 package ml.dent.app;
 
 import io.netty.channel.ChannelFuture;
+import ml.dent.net.TransportContext;
 import ml.dent.server.ControlServer;
+import ml.dent.server.StatsServer;
+import ml.dent.video.VideoServer;
 
 import java.util.Scanner;
 
@@ -11,10 +14,21 @@ public class Main {
 
     public static void main(String[] args) throws InterruptedException {
         System.out.println("Starting server on port [" + PORT + "]...");
-        ControlServer server = new ControlServer(PORT);
+        TransportContext transport = new TransportContext(Integer.getInteger("ioThreads", 0));
+        System.out.println("Using " + (transport.isEpoll() ? "epoll" : "NIO") + " transport");
+        // Done once up front, so that configuring and starting streams never waits for it
+        VideoServer.initGstreamer();
+        ControlServer server = new ControlServer(PORT, transport);
         ChannelFuture cf = server.start();
+
+        int statsPort = Integer.getInteger("statsPort", -1);
+        if (statsPort > 0) {
+            System.out.println("Serving stream statistics on 127.0.0.1:" + statsPort);
+            new StatsServer(statsPort, server, transport).start();
+        }
         cf.addListener(listener -> {
             System.out.println("Video client shutting down");
+            transport.shutdownGracefully();
         });
 
         if (args.length > 0) {
@@ -1,20 +1,16 @@
 package ml.dent.net;
 
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
-import io.netty.handler.ssl.SslHandler;
 import io.netty.util.concurrent.Future;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.ReadOnlyBooleanProperty;
 import javafx.beans.property.SimpleBooleanProperty;
 
-import javax.net.ssl.*;
 import java.net.InetSocketAddress;
-import java.security.SecureRandom;
-import java.security.cert.X509Certificate;
 
 /**
  * The base network client class that handles connecting to a server.
@@ -26,9 +22,9 @@ public abstract class AbstractNetworkClient {
     private String host;
     private int    port;
 
-    private EventLoopGroup group;
-    private Channel        channel;
-    private ChannelFuture  connectionFuture;
+    private TransportContext transport;
+    private Channel          channel;
+    private ChannelFuture    connectionFuture;
 
     private boolean connectCalled;
     private boolean disconnectCalled;
@@ -40,9 +36,20 @@ public abstract class AbstractNetworkClient {
 
     private String closeReason;
 
+    private ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+
     public AbstractNetworkClient(String host, int port) {
+        this(host, port, null);
+    }
+
+    /**
+     * @param transport The event loops this client's connections run on, null to use
+     *                  {@link TransportContext#shared()}
+     */
+    public AbstractNetworkClient(String host, int port, TransportContext transport) {
         this.host = host;
         this.port = port;
+        this.transport = transport;
     }
 
     /**
@@ -68,43 +75,23 @@ public abstract class AbstractNetworkClient {
         connectCalled = true;
         disconnectCalled = false;
 
-        group = new NioEventLoopGroup();
+        TransportContext transport = getTransportContext();
         Bootstrap bootstrap = new Bootstrap();
 
-        bootstrap.group(group);
-        bootstrap.channel(NioSocketChannel.class);
+        bootstrap.group(transport.group());
+        bootstrap.channel(transport.socketChannelClass());
         bootstrap.remoteAddress(new InetSocketAddress(host, port));
 
         bootstrap.handler(new ChannelInitializer<SocketChannel>() {
             protected void initChannel(SocketChannel socketChannel) throws Exception {
                 if (enableSSL) {
-                    TrustManager[] trustAllCerts = new TrustManager[]{new X509TrustManager() {
-                        public X509Certificate[] getAcceptedIssuers() {
-                            return new X509Certificate[0];
-                        }
-
-                        public void checkClientTrusted(X509Certificate[] certs, String authType) {
-                        }
-
-                        public void checkServerTrusted(X509Certificate[] certs, String authType) {
-                        }
-                    }};
-
-                    SSLContext sc = SSLContext.getInstance("SSL");
-                    sc.init(null, trustAllCerts, new SecureRandom());
-                    HttpsURLConnection.setDefaultSSLSocketFactory(sc.getSocketFactory());
-                    HttpsURLConnection.setDefaultHostnameVerifier((hostname, session) -> true);
-
-                    final SSLEngine sslEngine = sc.createSSLEngine(host, port);
-                    sslEngine.setUseClientMode(true);
-                    sslEngine.setNeedClientAuth(false);
-
-                    socketChannel.pipeline().addLast("ssl", new SslHandler(sslEngine));
+                    ClientSslContext sslContext = ClientSslContext.get(verifyCertificates, preferOpenSsl);
+                    socketChannel.pipeline().addLast("ssl", sslContext.newHandler(socketChannel.alloc(), host, port));
                 }
                 socketChannel.pipeline().addLast(new InboundHandler()).addLast(channelHandlers);
             }
-        }).option(ChannelOption.TCP_NODELAY, true).option(ChannelOption.SO_KEEPALIVE, true);
-        ;
+        }).option(ChannelOption.TCP_NODELAY, true).option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.ALLOCATOR, allocator);
 
         connectionFuture = bootstrap.connect();
         connectionFuture.addListener(future -> {
@@ -127,6 +114,60 @@ public abstract class AbstractNetworkClient {
         return enableSSL;
     }
 
+    private boolean verifyCertificates;
+    private boolean preferOpenSsl;
+
+    /**
+     * If set, the server's certificate and host name are verified against the JVM's trust store.
+     * Otherwise any certificate is accepted, which is the default.
+     */
+    public void setVerifyCertificates(boolean set) {
+        verifyCertificates = set;
+    }
+
+    public boolean getVerifyCertificates() {
+        return verifyCertificates;
+    }
+
+    /**
+     * If set, TLS is handled by OpenSSL through netty-tcnative when it is available
+     */
+    public void setPreferOpenSsl(boolean set) {
+        preferOpenSsl = set;
+    }
+
+    public boolean getPreferOpenSsl() {
+        return preferOpenSsl;
+    }
+
+    /**
+     * Sets the allocator used for this client's channel and for any buffers the client creates
+     * itself. Defaults to the pooled allocator, which hands out direct buffers where the platform
+     * supports them. Only takes effect on the next connect.
+     */
+    public void setAllocator(ByteBufAllocator allocator) {
+        this.allocator = allocator;
+    }
+
+    public ByteBufAllocator getAllocator() {
+        return allocator;
+    }
+
+    /**
+     * Sets the event loops used by the next connect. The group is shared, so it is left running when
+     * this client disconnects.
+     */
+    public void setTransportContext(TransportContext transport) {
+        this.transport = transport;
+    }
+
+    public TransportContext getTransportContext() {
+        if (transport == null) {
+            transport = TransportContext.shared();
+        }
+        return transport;
+    }
+
     /**
      * Disconnects the connection
      *
@@ -139,8 +180,7 @@ public abstract class AbstractNetworkClient {
         }
         disconnectCalled = true;
         closeReason = "Connection closed by user";
-        channel.disconnect();
-        return group.shutdownGracefully();
+        return channel.close();
     }
 
     /**
@@ -0,0 +1,80 @@
+package ml.dent.net;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * TLS configuration for outgoing connections, built once and shared by every client with the same
+ * settings. Engines are created for the peer's host and port, so the context's session cache lets a
+ * reconnect to the same relay resume its previous session instead of doing a full handshake.
+ */
+public class ClientSslContext {
+
+    public static final long SESSION_CACHE_SIZE      = 256;
+    public static final long SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+
+    // Indexed by verifyCertificates and preferOpenSsl
+    private static final ClientSslContext[] contexts = new ClientSslContext[4];
+
+    private final SslContext  context;
+    private final SslProvider provider;
+    private final boolean     verifyCertificates;
+
+    /**
+     * @param verifyCertificates Whether the server's certificate chain and host name are checked
+     *                           against the JVM's trust store. If not, any certificate is accepted.
+     * @param preferOpenSsl      Use the OpenSSL engine when netty-tcnative is available, otherwise
+     *                           the JDK engine is used
+     */
+    private ClientSslContext(boolean verifyCertificates, boolean preferOpenSsl) throws SSLException {
+        this.verifyCertificates = verifyCertificates;
+        provider = preferOpenSsl && OpenSsl.isAvailable() ? SslProvider.OPENSSL : SslProvider.JDK;
+        SslContextBuilder builder = SslContextBuilder.forClient()
+                .sslProvider(provider)
+                .sessionCacheSize(SESSION_CACHE_SIZE)
+                .sessionTimeout(SESSION_TIMEOUT_SECONDS);
+        if (!verifyCertificates) {
+            builder.trustManager(InsecureTrustManagerFactory.INSTANCE);
+        }
+        context = builder.build();
+    }
+
+    /**
+     * @return The shared context for the given settings, building it the first time it is requested
+     */
+    public static synchronized ClientSslContext get(boolean verifyCertificates, boolean preferOpenSsl) throws SSLException {
+        int index = (verifyCertificates ? 2 : 0) + (preferOpenSsl ? 1 : 0);
+        if (contexts[index] == null) {
+            contexts[index] = new ClientSslContext(verifyCertificates, preferOpenSsl);
+        }
+        return contexts[index];
+    }
+
+    public SslHandler newHandler(ByteBufAllocator alloc, String host, int port) {
+        SslHandler handler = context.newHandler(alloc, host, port);
+        if (verifyCertificates) {
+            SSLEngine engine = handler.engine();
+            SSLParameters parameters = engine.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            engine.setSSLParameters(parameters);
+        }
+        return handler;
+    }
+
+    /**
+     * @return The engine actually in use, which is the JDK's if OpenSSL was preferred but is not
+     * available
+     */
+    public SslProvider getProvider() {
+        return provider;
+    }
+}
@@ -1,8 +1,8 @@
 package ml.dent.net;
 
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.channel.Channel;
-import io.netty.util.CharsetUtil;
 
 public class NetworkUtils {
 
@@ -11,13 +11,16 @@ public class NetworkUtils {
 
     public static void sendMessage(Channel channel, String message) {
         if (channel != null && channel.isActive() && channel.isWritable()) {
-            channel.writeAndFlush(Unpooled.copiedBuffer(message + "\n", CharsetUtil.UTF_8));
+            ByteBuf buf = channel.alloc().ioBuffer(ByteBufUtil.utf8MaxBytes(message) + 1);
+            ByteBufUtil.writeUtf8(buf, message);
+            buf.writeByte('\n');
+            channel.writeAndFlush(buf);
         }
     }
 
     public static void sendMessage(Channel channel, byte b) {
         if (channel != null && channel.isActive() && channel.isWritable()) {
-            channel.writeAndFlush(Unpooled.copiedBuffer(new byte[]{b}));
+            channel.writeAndFlush(channel.alloc().ioBuffer(1, 1).writeByte(b));
         }
     }
 }
@@ -0,0 +1,317 @@
+package ml.dent.net;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.util.internal.PlatformDependent;
+import ml.dent.util.LatencyHistogram;
+
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, lock-free hand-off from producer threads to a client's event loop. Any number of
+ * threads may offer buffers, but only the channel's event loop ever takes them out of the queue and
+ * writes them, so the channel has a single writer and is flushed once per batch instead of once per
+ * buffer. Buffers are passed to the channel as they are, without being copied again.
+ * <p>
+ * Every buffer can carry a timestamp, so that the time from then until it is written to the socket
+ * can be recorded in a {@link LatencyHistogram}. Timestamps are kept in a ring next to the queue
+ * rather than in a wrapper, and are only exact while a single thread produces the buffers. Buffers
+ * offered while the ring is full of timestamps still waiting to be written are written without
+ * recording their latency, rather than taking the timestamp of another buffer.
+ */
+public class OutboundQueue {
+
+    public static final int DEFAULT_CAPACITY   = 64;
+    public static final int DEFAULT_BATCH_SIZE = 16;
+
+    private final SimpleNetworkClient client;
+    private final Queue<ByteBuf>      queue;
+    private final int                 capacity;
+    private final int                 batchSize;
+
+    private final AtomicInteger size           = new AtomicInteger();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final AtomicLong    droppedBytes   = new AtomicLong();
+    private final AtomicLong    droppedBuffers = new AtomicLong();
+    private final Runnable      drainTask      = this::drain;
+
+    private volatile boolean holdWhileReconnecting;
+
+    private final long[] timestamps;
+    private final int    timestampMask;
+    // Only touched by the producer
+    private          long    produced;
+    // Only written by the event loop, the producer reads it to tell whether the ring is full
+    private volatile long    consumed;
+    // The last buffer offered while the ring was full, buffers up to it have no timestamp
+    private volatile long    untimedUpTo = -1;
+    // Only touched by the event loop
+    private          long    polledTimestamp;
+    private          boolean polledTimed;
+
+    private volatile LatencyHistogram writeLatency;
+
+    public OutboundQueue(SimpleNetworkClient client) {
+        this(client, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param client    The client whose channel the queued buffers are written to
+     * @param capacity  The maximum number of buffers that can be waiting to be written
+     * @param batchSize The maximum number of buffers written before the channel is flushed and the
+     *                  event loop is given back to other tasks
+     */
+    public OutboundQueue(SimpleNetworkClient client, int capacity, int batchSize) {
+        if (capacity < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("capacity and batchSize must be positive");
+        }
+        this.client = client;
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        queue = PlatformDependent.newMpscQueue();
+        // Leaves room for the buffers offered past capacity before the event loop trims them
+        int ringSize = Integer.highestOneBit(capacity * 4 - 1) << 1;
+        timestamps = new long[ringSize];
+        timestampMask = ringSize - 1;
+    }
+
+    /**
+     * @param histogram Records the time from the timestamp each buffer was offered with until it is
+     *                  written to the socket, or null to record nothing
+     */
+    public void setWriteLatencyHistogram(LatencyHistogram histogram) {
+        writeLatency = histogram;
+    }
+
+    /**
+     * Publishes a buffer to be written by the channel's event loop. If the offer succeeds the queue
+     * takes ownership of the buffer, otherwise the caller is still responsible for releasing it.
+     *
+     * @return false if the queue is full
+     */
+    public boolean offer(ByteBuf buf) {
+        return offer(buf, System.nanoTime());
+    }
+
+    /**
+     * @param timestamp A {@link System#nanoTime()} the write latency of the buffer is measured from
+     * @see #offer(ByteBuf)
+     */
+    public boolean offer(ByteBuf buf, long timestamp) {
+        if (size.incrementAndGet() > capacity) {
+            size.decrementAndGet();
+            return false;
+        }
+        enqueue(buf, timestamp);
+        return true;
+    }
+
+    /**
+     * Publishes a buffer like {@link #offer(ByteBuf)}, but always accepts it. If the queue is over
+     * capacity the oldest buffers are dropped the next time the event loop drains it.
+     */
+    public void offerDroppingOldest(ByteBuf buf) {
+        offerDroppingOldest(buf, System.nanoTime());
+    }
+
+    /**
+     * @param timestamp A {@link System#nanoTime()} the write latency of the buffer is measured from
+     * @see #offerDroppingOldest(ByteBuf)
+     */
+    public void offerDroppingOldest(ByteBuf buf, long timestamp) {
+        size.incrementAndGet();
+        enqueue(buf, timestamp);
+    }
+
+    private void enqueue(ByteBuf buf, long timestamp) {
+        // Nothing drains the queue during a disconnect, so it can outgrow the ring
+        if (produced - consumed >= timestamps.length) {
+            untimedUpTo = produced;
+        } else {
+            timestamps[(int) (produced & timestampMask)] = timestamp;
+        }
+        produced++;
+        // Publishing the buffer also publishes its timestamp to the event loop
+        queue.offer(buf);
+        scheduleDrain();
+    }
+
+    /**
+     * Releases a buffer that will never be written and counts it as dropped
+     */
+    public void drop(ByteBuf buf) {
+        droppedBytes.addAndGet(buf.readableBytes());
+        droppedBuffers.incrementAndGet();
+        buf.release();
+    }
+
+    public long getDroppedBytes() {
+        return droppedBytes.get();
+    }
+
+    public long getDroppedBuffers() {
+        return droppedBuffers.get();
+    }
+
+    /**
+     * Counts a buffer that was never queued as dropped
+     */
+    public void countDropped(int bytes) {
+        droppedBytes.addAndGet(bytes);
+        droppedBuffers.incrementAndGet();
+    }
+
+    /**
+     * If set, queued buffers are kept while the client is reconnecting and written once the new
+     * connection is ready, instead of being released when the old connection closes. The oldest ones
+     * are still dropped if the queue is over capacity.
+     */
+    public void setHoldWhileReconnecting(boolean set) {
+        holdWhileReconnecting = set;
+    }
+
+    /**
+     * @return The number of buffers waiting to be written
+     */
+    public int size() {
+        return size.get();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    /**
+     * @return The number of bytes written to the channel that have not made it to the socket yet
+     */
+    public long getPendingWriteBytes() {
+        Channel channel = client.getChannel();
+        if (channel == null) {
+            return 0;
+        }
+        ChannelOutboundBuffer buffer = channel.unsafe().outboundBuffer();
+        return buffer == null ? 0 : buffer.totalPendingWriteBytes();
+    }
+
+    /**
+     * Creates a handler that starts draining when the connection is ready and resumes it whenever the
+     * channel becomes writable again. A new handler must be added to the pipeline on every connect.
+     */
+    public ChannelHandler newWritabilityHandler() {
+        return new ChannelInboundHandlerAdapter() {
+            @Override
+            public void channelActive(ChannelHandlerContext ctx) throws Exception {
+                scheduleDrain();
+                super.channelActive(ctx);
+            }
+
+            @Override
+            public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+                if (ctx.channel().isWritable()) {
+                    scheduleDrain();
+                }
+                super.channelWritabilityChanged(ctx);
+            }
+
+            @Override
+            public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+                // Release anything still queued for the dead channel, unless it is being held
+                scheduleDrain();
+                super.channelInactive(ctx);
+            }
+        };
+    }
+
+    private void scheduleDrain() {
+        if (!drainScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        Channel channel = client.getChannel();
+        if (channel == null) {
+            drainScheduled.set(false);
+            return;
+        }
+        channel.eventLoop().execute(drainTask);
+    }
+
+    // Only ever runs on the channel's event loop, which makes it the queue's single consumer
+    private void drain() {
+        drainScheduled.set(false);
+        Channel channel = client.getChannel();
+        // The client is only active once any proxy and bounce server handshakes are done
+        if (channel == null || !client.isConnectionActive()) {
+            if (holdWhileReconnecting && client.isReconnecting()) {
+                trimToCapacity();
+            } else {
+                clear();
+            }
+            return;
+        }
+        trimToCapacity();
+
+        LatencyHistogram latency = writeLatency;
+        int written = 0;
+        while (written < batchSize && channel.isWritable()) {
+            ByteBuf buf = poll();
+            if (buf == null) {
+                break;
+            }
+            client.writeInEventLoop(buf);
+            if (latency != null && polledTimed) {
+                latency.record(System.nanoTime() - polledTimestamp);
+            }
+            written++;
+        }
+        // Every buffer is a whole sample, so this never holds back the tail of one
+        if (written > 0) {
+            client.flushInEventLoop();
+        }
+        // If the channel is not writable the writability handler picks the drain back up
+        if (!isEmpty() && channel.isWritable()) {
+            scheduleDrain();
+        }
+    }
+
+    private void trimToCapacity() {
+        while (size.get() > capacity) {
+            ByteBuf oldest = poll();
+            if (oldest == null) {
+                break;
+            }
+            drop(oldest);
+        }
+    }
+
+    private ByteBuf poll() {
+        ByteBuf buf = queue.poll();
+        if (buf != null) {
+            size.decrementAndGet();
+            long sequence = consumed;
+            polledTimed = sequence > untimedUpTo;
+            if (polledTimed) {
+                polledTimestamp = timestamps[(int) (sequence & timestampMask)];
+            }
+            // The slot may only be reused once its timestamp has been read
+            consumed = sequence + 1;
+        }
+        return buf;
+    }
+
+    private void clear() {
+        ByteBuf buf;
+        while ((buf = poll()) != null) {
+            drop(buf);
+        }
+    }
+}
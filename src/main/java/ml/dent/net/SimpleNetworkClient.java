@@ -1,20 +1,25 @@
 package ml.dent.net;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
-import io.netty.buffer.UnpooledByteBufAllocator;
 import io.netty.channel.*;
 import io.netty.handler.proxy.ProxyConnectException;
 import io.netty.util.CharsetUtil;
 import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ScheduledFuture;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.ReadOnlyBooleanProperty;
 import javafx.beans.property.SimpleBooleanProperty;
 
 import java.net.ProtocolException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A basic working implementation of the network client that can write data and
@@ -24,7 +29,11 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public class SimpleNetworkClient extends AbstractNetworkClient {
 
-    private static final int BUFFER_SIZE = 256;
+    public static final int  DEFAULT_WRITE_BUFFER_SIZE = 8192;
+    public static final long DEFAULT_MAX_WRITE_DELAY   = 5;
+
+    public static final long DEFAULT_RECONNECT_MIN_DELAY = 250;
+    public static final long DEFAULT_RECONNECT_MAX_DELAY = 10_000;
 
     private boolean proxyEnabled;
     private boolean bounceServerProtocol;
@@ -64,7 +73,7 @@ public class SimpleNetworkClient extends AbstractNetworkClient {
         bounceServerProtocol = true;
     }
 
-    private DefaultChannelPromise channelPromise;
+    private ConnectionPromise channelPromise;
 
     @Override
     public ChannelFuture connect() {
@@ -88,43 +97,159 @@ public class SimpleNetworkClient extends AbstractNetworkClient {
         System.arraycopy(channelHandlers, 0, newHandlers, handlerList.size(), channelHandlers.length);
 
         ChannelFuture cf = super.connect(newHandlers);
-        generateNewChannelFuture(cf);
+        // The handshake may already be done on the event loop, which then created the promise
+        ConnectionPromise promise = connectionPromise(cf.channel());
+        promise.setConnectFuture(cf);
+        cf.channel().closeFuture().addListener(future -> connectionClosed());
+        return promise;
+    }
+
+    @Override
+    public Future<?> disconnect() {
+        keepConnected = false;
+        reconnecting = false;
+        ScheduledFuture<?> pending = reconnectFuture;
+        if (pending != null) {
+            pending.cancel(false);
+        }
+        Future<?> closed = super.disconnect();
+        Channel ch = getChannel();
+        if (closed == null && ch != null && ch.isOpen()) {
+            // Still in the middle of a reconnect handshake
+            return ch.close();
+        }
+        return closed;
+    }
+
+    private boolean autoReconnect;
+    private long    reconnectMinDelay = DEFAULT_RECONNECT_MIN_DELAY;
+    private long    reconnectMaxDelay = DEFAULT_RECONNECT_MAX_DELAY;
+
+    // Set once a connection has been established with auto reconnect enabled, until disconnect() is called
+    private volatile boolean            keepConnected;
+    private volatile boolean            reconnecting;
+    private volatile ScheduledFuture<?> reconnectFuture;
+
+    // Counted on whichever event loop the last attempt's channel was registered with
+    private volatile int reconnectAttempts;
+    private final AtomicLong reconnectCount = new AtomicLong();
+
+    /**
+     * If set, a connection that closes without {@link #disconnect()} being called is reestablished
+     * automatically, waiting a jittered, exponentially growing delay between attempts. Only
+     * connections that succeeded at least once are reestablished.
+     */
+    public void setAutoReconnect(boolean set) {
+        autoReconnect = set;
+    }
+
+    public boolean getAutoReconnect() {
+        return autoReconnect;
+    }
+
+    /**
+     * Sets the bounds of the delay between reconnect attempts in milliseconds. The first attempt waits
+     * around the minimum delay, and every failed attempt doubles it up to the maximum.
+     */
+    public void setReconnectDelay(long minDelay, long maxDelay) {
+        if (minDelay < 1 || maxDelay < minDelay) {
+            throw new IllegalArgumentException("Reconnect delays must be positive and minDelay <= maxDelay");
+        }
+        reconnectMinDelay = minDelay;
+        reconnectMaxDelay = maxDelay;
+    }
+
+    /**
+     * @return Whether the connection was lost and this client is trying to reestablish it
+     */
+    public boolean isReconnecting() {
+        return reconnecting;
+    }
+
+    /**
+     * @return The number of times a lost connection was successfully reestablished
+     */
+    public long getReconnectCount() {
+        return reconnectCount.get();
+    }
+
+    private void connectionClosed() {
+        if (!keepConnected || !autoReconnect) {
+            return;
+        }
+        reconnecting = true;
+        // Equal jitter: half of the backoff is fixed, the other half random
+        long backoff = reconnectMinDelay << Math.min(reconnectAttempts, 20);
+        backoff = Math.min(backoff, reconnectMaxDelay);
+        long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        reconnectAttempts++;
+        System.out.println("Connection to " + getHost() + ":" + getPort() + " lost, reconnecting in " + delay + "ms");
+        reconnectFuture = getTransportContext().group().schedule(this::reconnect, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void reconnect() {
+        reconnectFuture = null;
+        if (!keepConnected) {
+            return;
+        }
+        // A failed attempt closes its channel, which schedules the next one
+        connect();
+    }
+
+    /**
+     * @return The promise of the connection on the given channel, created by whichever of connect()
+     * and the channel's handlers gets to it first
+     */
+    private synchronized ConnectionPromise connectionPromise(Channel ch) {
+        if (channelPromise == null || channelPromise.channel() != ch) {
+            channelPromise = new ConnectionPromise(ch);
+        }
         return channelPromise;
     }
 
-    private void generateNewChannelFuture(ChannelFuture cf) {
-        channelPromise = new DefaultChannelPromise(cf.channel()) {
-            {
-                cf.addListener(listener -> {
-                    if (!cf.isSuccess()) {
-                        setFailure(cf.cause());
-                    }
-                });
-            }
+    // Completes once the connection is ready to be used, after any proxy and bounce server handshakes
+    private class ConnectionPromise extends DefaultChannelPromise {
 
-            @Override
-            public boolean isDone() {
-                return connectionAttempted.get() && cf.isDone();
-            }
+        private volatile ChannelFuture connectFuture;
 
-            @Override
-            public boolean isSuccess() {
-                return isConnectionActive() && cf.isSuccess();
-            }
+        ConnectionPromise(Channel ch) {
+            super(ch);
+        }
 
-            @Override
-            public ChannelPromise setSuccess() {
-                connectionAttempted.set(true);
-                connectionStatusProperty.set(true);
-                return super.setSuccess();
-            }
+        void setConnectFuture(ChannelFuture cf) {
+            connectFuture = cf;
+            cf.addListener(listener -> {
+                if (!cf.isSuccess()) {
+                    setFailure(cf.cause());
+                }
+            });
+        }
 
-            @Override
-            public ChannelPromise setFailure(Throwable cause) {
-                connectionAttempted.set(true);
-                return super.setFailure(cause);
-            }
-        };
+        @Override
+        public boolean isDone() {
+            // Until connect() has handed over its future, only a handshake can have finished it
+            ChannelFuture cf = connectFuture;
+            return connectionAttempted.get() && (cf == null || cf.isDone());
+        }
+
+        @Override
+        public boolean isSuccess() {
+            ChannelFuture cf = connectFuture;
+            return isConnectionActive() && (cf == null || cf.isSuccess());
+        }
+
+        @Override
+        public ChannelPromise setSuccess() {
+            connectionAttempted.set(true);
+            connectionStatusProperty.set(true);
+            return super.setSuccess();
+        }
+
+        @Override
+        public ChannelPromise setFailure(Throwable cause) {
+            connectionAttempted.set(true);
+            return super.setFailure(cause);
+        }
     }
 
     @Override
@@ -138,44 +263,169 @@ public class SimpleNetworkClient extends AbstractNetworkClient {
     }
 
     public ChannelFuture write(String s) {
-        return write(Unpooled.copiedBuffer(s, CharsetUtil.UTF_8));
+        return write(ByteBufUtil.writeUtf8(getAllocator(), s));
     }
 
-    private ByteBufAllocator alloc = UnpooledByteBufAllocator.DEFAULT;
-    private ByteBuf          curBuffer;
+    private int  writeBufferSize         = DEFAULT_WRITE_BUFFER_SIZE;
+    private long maxWriteDelayNanos      = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_WRITE_DELAY);
+    private long pendingSince;
+    private boolean flushTimerArmed;
+
+    // Only touched from the channel's event loop
+    private ByteBuf curBuffer;
+
+    // Single bytes written from other threads, collected on their side and handed to the event loop
+    // a buffer at a time. Guarded by the lock.
+    private final Object callerBytesLock = new Object();
+    private ByteBuf      callerBytes;
+
+    private final Runnable flushTimerTask       = this::flushTimerExpired;
+    private final Runnable callerBytesTimerTask = this::callerBytesTimerExpired;
+
+    /**
+     * If buffering is enabled, single bytes are coalesced into a buffer of this size. The buffer is
+     * written and flushed as soon as it fills up, on {@link #flush()}, or when the oldest byte in it
+     * has been waiting for the maximum write delay, whichever comes first. Whole buffers are passed
+     * to the channel as they are and flushed on {@link #flush()} or after the maximum write delay.
+     */
+    public void setWriteBufferSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Write buffer size must be positive");
+        }
+        writeBufferSize = size;
+    }
+
+    public int getWriteBufferSize() {
+        return writeBufferSize;
+    }
 
     /**
-     * If buffering is enabled, this method will flush for you if the buffer is filled.
+     * Sets the longest time buffered bytes may wait before they are flushed, regardless of how full
+     * the buffer is.
+     */
+    public void setMaxWriteDelay(long delay, TimeUnit unit) {
+        maxWriteDelayNanos = unit.toNanos(delay);
+    }
+
+    public long getMaxWriteDelay(TimeUnit unit) {
+        return unit.convert(maxWriteDelayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * If buffering is enabled, this method will flush for you if the buffer is filled or the maximum
+     * write delay has passed. Bytes written from other threads are collected on the calling side and
+     * handed to the channel's event loop a whole buffer at a time.
      *
      * @param b The byte to write
      */
     public void write(byte b) {
         if (buffering) {
-            if (curBuffer == null) {
-                curBuffer = alloc.buffer(BUFFER_SIZE, BUFFER_SIZE);
+            EventLoop loop = getChannel().eventLoop();
+            if (loop.inEventLoop()) {
+                bufferByte(b);
+                return;
             }
-            if (curBuffer.writableBytes() <= 0) {
-                writeAndFlush(curBuffer);
-                curBuffer = alloc.buffer(BUFFER_SIZE, BUFFER_SIZE);
+            ByteBuf full = null;
+            boolean first;
+            synchronized (callerBytesLock) {
+                first = callerBytes == null;
+                if (first) {
+                    callerBytes = getAllocator().ioBuffer(writeBufferSize, writeBufferSize);
+                }
+                callerBytes.writeByte(b);
+                if (!callerBytes.isWritable()) {
+                    full = callerBytes;
+                    callerBytes = null;
+                }
+            }
+            if (full != null) {
+                ByteBuf bytes = full;
+                loop.execute(() -> {
+                    writeInEventLoop(bytes);
+                    flushBuffered();
+                });
+            } else if (first) {
+                loop.schedule(callerBytesTimerTask, maxWriteDelayNanos, TimeUnit.NANOSECONDS);
             }
-            curBuffer.writeByte(b);
         } else {
-            ByteBuf buf = alloc.buffer();
+            ByteBuf buf = getAllocator().ioBuffer(1, 1);
             buf.writeByte(b);
             write(buf);
         }
     }
 
+    /**
+     * Writes a buffer without any per-byte work and without a future to wait on, unlike
+     * {@link #write(Object)}. Takes ownership of the buffer, which is released once it has been
+     * written.
+     */
+    public void writeOwned(ByteBuf buf) {
+        if (!isConnectionActive()) {
+            buf.release();
+            throw new IllegalStateException("Cannot write to non-active Channel!");
+        }
+        EventLoop loop = getChannel().eventLoop();
+        if (loop.inEventLoop()) {
+            writeInEventLoop(buf);
+        } else {
+            handOverCallerBytes(loop);
+            loop.execute(() -> writeInEventLoop(buf));
+        }
+    }
+
+    /**
+     * Copies the given range of the array into a single buffer and writes it, see
+     * {@link #writeOwned(ByteBuf)}
+     */
+    public void write(byte[] bytes, int offset, int length) {
+        ByteBuf buf = getAllocator().ioBuffer(length, length);
+        buf.writeBytes(bytes, offset, length);
+        writeOwned(buf);
+    }
+
+    /**
+     * Copies the remaining bytes of the {@link ByteBuffer} into a single buffer and writes it, see
+     * {@link #writeOwned(ByteBuf)}
+     */
+    public void write(ByteBuffer data) {
+        int length = data.remaining();
+        ByteBuf buf = getAllocator().ioBuffer(length, length);
+        buf.writeBytes(data);
+        writeOwned(buf);
+    }
+
     public ChannelFuture write(Object o) {
         if (!isConnectionActive()) {
             throw new IllegalStateException("Cannot write to non-active Channel!");
         }
 
-        return getChannel().write(o);
+        Channel ch = getChannel();
+        if (!buffering) {
+            return ch.write(o);
+        }
+        // Anything still buffered was written first, so it has to reach the channel first
+        ChannelPromise promise = ch.newPromise();
+        if (ch.eventLoop().inEventLoop()) {
+            writeBuffered();
+            ch.write(o, promise);
+        } else {
+            handOverCallerBytes(ch.eventLoop());
+            ch.eventLoop().execute(() -> {
+                writeBuffered();
+                ch.write(o, promise);
+            });
+        }
+        return promise;
     }
 
     public void flush() {
-        getChannel().flush();
+        Channel ch = getChannel();
+        if (ch.eventLoop().inEventLoop()) {
+            flushBuffered();
+        } else {
+            handOverCallerBytes(ch.eventLoop());
+            ch.eventLoop().execute(this::flushBuffered);
+        }
     }
 
     public ChannelFuture writeAndFlush(String s) {
@@ -195,6 +445,155 @@ public class SimpleNetworkClient extends AbstractNetworkClient {
         return cf;
     }
 
+    /**
+     * Writes a buffer without flushing, after anything buffered before it. The buffer is passed to
+     * the channel as it is, if buffering is enabled it is flushed on {@link #flush()} or after the
+     * maximum write delay. Must be called from the channel's event loop, takes ownership of the
+     * buffer.
+     */
+    void writeInEventLoop(ByteBuf buf) {
+        Channel ch = getChannel();
+        writeBuffered();
+        ch.write(buf, ch.voidPromise());
+        if (buffering) {
+            writePending();
+        }
+    }
+
+    /**
+     * Writes out anything buffered and flushes the channel. Must be called from the channel's event
+     * loop.
+     */
+    void flushInEventLoop() {
+        flushBuffered();
+    }
+
+    private void bufferByte(byte b) {
+        if (curBuffer == null) {
+            curBuffer = getAllocator().ioBuffer(writeBufferSize, writeBufferSize);
+        }
+        curBuffer.writeByte(b);
+        if (!curBuffer.isWritable()) {
+            flushBuffered();
+        } else {
+            writePending();
+        }
+    }
+
+    // Starts the max write delay for whatever has not been flushed yet
+    private void writePending() {
+        if (pendingSince == 0) {
+            pendingSince = System.nanoTime();
+        }
+        if (!flushTimerArmed) {
+            flushTimerArmed = true;
+            getChannel().eventLoop().schedule(flushTimerTask, maxWriteDelayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // Instead of cancelling the timer on every flush it is left running and re-armed for whatever
+    // is left of the delay of the bytes buffered since
+    private void flushTimerExpired() {
+        EventLoop loop = getChannel().eventLoop();
+        if (!loop.inEventLoop()) {
+            // The client reconnected on a different event loop since the timer was armed
+            loop.execute(flushTimerTask);
+            return;
+        }
+        flushTimerArmed = false;
+        if (pendingSince == 0) {
+            return;
+        }
+        long waited = System.nanoTime() - pendingSince;
+        if (waited >= maxWriteDelayNanos) {
+            flushBuffered();
+        } else {
+            flushTimerArmed = true;
+            getChannel().eventLoop().schedule(flushTimerTask, maxWriteDelayNanos - waited, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // The bytes collected on other threads have waited the max write delay
+    private void callerBytesTimerExpired() {
+        EventLoop loop = getChannel().eventLoop();
+        if (!loop.inEventLoop()) {
+            loop.execute(callerBytesTimerTask);
+            return;
+        }
+        ByteBuf bytes = takeCallerBytes();
+        if (bytes != null) {
+            writeInEventLoop(bytes);
+            flushBuffered();
+        }
+    }
+
+    /**
+     * Hands the bytes collected on other threads to the event loop, ahead of whatever the calling
+     * thread hands it next
+     */
+    private void handOverCallerBytes(EventLoop loop) {
+        ByteBuf bytes = takeCallerBytes();
+        if (bytes != null) {
+            loop.execute(() -> writeInEventLoop(bytes));
+        }
+    }
+
+    private ByteBuf takeCallerBytes() {
+        ByteBuf bytes;
+        synchronized (callerBytesLock) {
+            bytes = callerBytes;
+            callerBytes = null;
+        }
+        if (bytes != null && !bytes.isReadable()) {
+            bytes.release();
+            return null;
+        }
+        return bytes;
+    }
+
+    private void writeBuffered() {
+        if (curBuffer == null) {
+            return;
+        }
+        Channel ch = getChannel();
+        if (curBuffer.isReadable() && ch.isActive()) {
+            ch.write(curBuffer, ch.voidPromise());
+        } else {
+            curBuffer.release();
+        }
+        curBuffer = null;
+    }
+
+    private void flushBuffered() {
+        writeBuffered();
+        getChannel().flush();
+        pendingSince = 0;
+    }
+
+    private void releaseBuffered() {
+        if (curBuffer != null) {
+            curBuffer.release();
+            curBuffer = null;
+        }
+        ByteBuf bytes = takeCallerBytes();
+        if (bytes != null) {
+            bytes.release();
+        }
+        pendingSince = 0;
+    }
+
+    /**
+     * Changing the bounce server channel will not update the connection unless this instance is
+     * closed and reopened
+     */
+    public void setBounceChannel(int channel) {
+        this.channel = channel;
+    }
+
+    public int getBounceChannel() {
+        return channel;
+    }
+
     public int getInternalPort() {
         return internalPort;
     }
@@ -273,7 +672,7 @@ public class SimpleNetworkClient extends AbstractNetworkClient {
                     }
                     if (endCount < 2) {
                         // Did not receive complete HTTP response
-                        channelPromise.setFailure(new ProxyConnectException("Did not receive valid HTTP response from proxy"));
+                        connectionPromise(ctx.channel()).setFailure(new ProxyConnectException("Did not receive valid HTTP response from proxy"));
                         ctx.close();
                         return;
                     }
@@ -287,7 +686,7 @@ public class SimpleNetworkClient extends AbstractNetworkClient {
                             super.channelRead(ctx, nextBuf);
                         }
                     } else {
-                        channelPromise.setFailure(new ProxyConnectException(httpResponse.toString()));
+                        connectionPromise(ctx.channel()).setFailure(new ProxyConnectException(httpResponse.toString()));
                         ctx.close();
                     }
                 } finally {
@@ -304,8 +703,9 @@ public class SimpleNetworkClient extends AbstractNetworkClient {
 
         @Override
         public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
-            if (!channelPromise.isDone()) {
-                channelPromise.setFailure(cause);
+            ConnectionPromise promise = connectionPromise(ctx.channel());
+            if (!promise.isDone()) {
+                promise.setFailure(cause);
                 ctx.close();
             }
         }
@@ -328,7 +728,7 @@ public class SimpleNetworkClient extends AbstractNetworkClient {
                 try {
                     String verString = ((ByteBuf) msg).toString(CharsetUtil.UTF_8).replaceAll("[\n\r]", "");
                     if (!verString.matches("\\d+-.*")) {
-                        channelPromise.setFailure(new ProtocolException("Received incoherent bounce server version string: " + verString));
+                        connectionPromise(ctx.channel()).setFailure(new ProtocolException("Received incoherent bounce server version string: " + verString));
                         ctx.close();
                         return;
                     }
@@ -353,7 +753,7 @@ public class SimpleNetworkClient extends AbstractNetworkClient {
                     if (statusString.equals("READY")) {
                         super.channelActive(ctx);
                     } else {
-                        channelPromise.setFailure(new ProtocolException(statusString));
+                        connectionPromise(ctx.channel()).setFailure(new ProtocolException(statusString));
                         ctx.close();
                     }
                 } finally {
@@ -366,8 +766,9 @@ public class SimpleNetworkClient extends AbstractNetworkClient {
 
         @Override
         public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
-            if (!channelPromise.isDone()) {
-                channelPromise.setFailure(cause);
+            ConnectionPromise promise = connectionPromise(ctx.channel());
+            if (!promise.isDone()) {
+                promise.setFailure(cause);
                 ctx.close();
             }
         }
@@ -378,15 +779,23 @@ public class SimpleNetworkClient extends AbstractNetworkClient {
     private class ActiveHandler extends ChannelInboundHandlerAdapter {
         @Override
         public void channelActive(ChannelHandlerContext ctx) throws Exception {
-            channelPromise.setSuccess();
+            connectionPromise(ctx.channel()).setSuccess();
             connectionAttempted.set(true);
+            if (reconnecting) {
+                System.out.println("Reconnected to " + getHost() + ":" + getPort());
+                reconnectCount.incrementAndGet();
+                reconnecting = false;
+            }
+            reconnectAttempts = 0;
+            keepConnected = autoReconnect;
             super.channelActive(ctx);
         }
 
         @Override
         public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            releaseBuffered();
             connectionAttempted.set(true);
-            if (channelPromise.isSuccess()) {
+            if (connectionPromise(ctx.channel()).isSuccess()) {
                 connectionStatusProperty.set(false);
                 super.channelInactive(ctx);
             }
@@ -0,0 +1,87 @@
+package ml.dent.net;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.Future;
+
+/**
+ * The event loops and channel types shared by the control server and every network client in the
+ * process. Uses the native epoll transport when it is available and falls back to NIO otherwise,
+ * so the number of I/O threads depends on the size of this context, not on the number of streams.
+ */
+public class TransportContext {
+
+    private static TransportContext sharedContext;
+
+    private final EventLoopGroup                       group;
+    private final Class<? extends SocketChannel>       socketChannelClass;
+    private final Class<? extends ServerSocketChannel> serverSocketChannelClass;
+    private final boolean                              epoll;
+
+    /**
+     * Creates a context with Netty's default number of threads, twice the number of cores
+     */
+    public TransportContext() {
+        this(0);
+    }
+
+    /**
+     * @param threads The number of event loop threads, or 0 to use Netty's default
+     */
+    public TransportContext(int threads) {
+        DefaultThreadFactory threadFactory = new DefaultThreadFactory("video-io");
+        epoll = Epoll.isAvailable();
+        if (epoll) {
+            group = new EpollEventLoopGroup(threads, threadFactory);
+            socketChannelClass = EpollSocketChannel.class;
+            serverSocketChannelClass = EpollServerSocketChannel.class;
+        } else {
+            group = new NioEventLoopGroup(threads, threadFactory);
+            socketChannelClass = NioSocketChannel.class;
+            serverSocketChannelClass = NioServerSocketChannel.class;
+        }
+    }
+
+    /**
+     * @return The context used by clients that were not given one. It is created the first time it
+     * is needed and lives as long as the process.
+     */
+    public static synchronized TransportContext shared() {
+        if (sharedContext == null) {
+            sharedContext = new TransportContext();
+        }
+        return sharedContext;
+    }
+
+    public EventLoopGroup group() {
+        return group;
+    }
+
+    public Class<? extends SocketChannel> socketChannelClass() {
+        return socketChannelClass;
+    }
+
+    public Class<? extends ServerSocketChannel> serverSocketChannelClass() {
+        return serverSocketChannelClass;
+    }
+
+    /**
+     * @return Whether the native epoll transport is in use
+     */
+    public boolean isEpoll() {
+        return epoll;
+    }
+
+    public Future<?> shutdownGracefully() {
+        return group.shutdownGracefully();
+    }
+}
@@ -0,0 +1,130 @@
+package ml.dent.server;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs control commands that may block, like connecting to the relay or tearing down a pipeline,
+ * away from the event loops. Every stream has a queue of its own, so the commands for a stream run
+ * one at a time in the order they were received. The queues share a pool of threads that grows
+ * while streams have commands running, so a command that blocks only ever holds up its own stream.
+ */
+public class CommandExecutor {
+
+    public static final int DEFAULT_MAX_PENDING_COMMANDS = 16;
+
+    private final ThreadPoolExecutor pool;
+    private final int                maxPendingCommands;
+
+    // Stream ids are a single byte, so there are never more queues than that
+    private final ConcurrentMap<Integer, StreamQueue> queues = new ConcurrentHashMap<>();
+
+    public CommandExecutor() {
+        this(Math.max(2, Runtime.getRuntime().availableProcessors() / 2), DEFAULT_MAX_PENDING_COMMANDS);
+    }
+
+    /**
+     * @param threads            The number of threads kept around for commands, more are started
+     *                           while more streams have commands running and stop again once idle
+     * @param maxPendingCommands How many commands can wait for each stream before new ones are
+     *                           rejected
+     */
+    public CommandExecutor(int threads, int maxPendingCommands) {
+        if (threads < 0 || maxPendingCommands < 1) {
+            throw new IllegalArgumentException("threads must not be negative and maxPendingCommands must be positive");
+        }
+        pool = new ThreadPoolExecutor(threads, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                new DefaultThreadFactory("video-control", true));
+        this.maxPendingCommands = maxPendingCommands;
+    }
+
+    /**
+     * Queues a command behind every command previously submitted for the same stream
+     *
+     * @return A future that completes once the command has run, failed if it threw
+     * @throws RejectedExecutionException If too many commands are already waiting for the stream, or
+     *                                    the executor was shut down
+     */
+    public Future<?> submit(int streamId, Runnable command) {
+        return queueFor(streamId).submit(command, false);
+    }
+
+    /**
+     * Queues a command like {@link #submit(int, Runnable)}, even if the stream already has the most
+     * commands waiting. Meant for commands that must not be lost, like stopping a stream whose
+     * controller went away.
+     *
+     * @throws RejectedExecutionException If the executor was shut down
+     */
+    public Future<?> submitAlways(int streamId, Runnable command) {
+        return queueFor(streamId).submit(command, true);
+    }
+
+    private StreamQueue queueFor(int streamId) {
+        return queues.computeIfAbsent(streamId, key -> new StreamQueue());
+    }
+
+    /**
+     * Stops taking new commands, the commands already queued still run
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    // The commands of one stream, run one after the other by whichever pool thread picked it up
+    private class StreamQueue implements Runnable {
+
+        private final Queue<Runnable> commands = new ArrayDeque<>();
+        // Whether a pool thread is working through the commands
+        private boolean running;
+
+        synchronized Future<?> submit(Runnable command, boolean always) {
+            if (!always && commands.size() >= maxPendingCommands) {
+                throw new RejectedExecutionException("Too many pending commands");
+            }
+            Promise<Void> promise = ImmediateEventExecutor.INSTANCE.newPromise();
+            Runnable task = () -> {
+                try {
+                    command.run();
+                    promise.setSuccess(null);
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                    promise.setFailure(e);
+                }
+            };
+            if (!running) {
+                // Throws if the pool was shut down, before anything was queued
+                pool.execute(this);
+                running = true;
+            }
+            commands.add(task);
+            return promise;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    task = commands.poll();
+                    if (task == null) {
+                        running = false;
+                        return;
+                    }
+                }
+                task.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package ml.dent.server;
+
+/**
+ * A decoded request from a control client, addressed to one stream. Commands without a payload
+ * are shared instances, so decoding them never allocates.
+ */
+public class ControlCommand {
+
+    public enum Type {
+        CONFIG,
+        UPDATE,
+        START_VIDEO,
+        STOP_VIDEO,
+        PING,
+        STATS
+    }
+
+    public static final int MAX_STREAM_ID = 255;
+
+    // Payload free commands for every stream, indexed by stream id and type
+    private static final ControlCommand[][] shared = new ControlCommand[MAX_STREAM_ID + 1][Type.values().length];
+
+    static {
+        for (int streamId = 0; streamId <= MAX_STREAM_ID; streamId++) {
+            for (Type type : Type.values()) {
+                shared[streamId][type.ordinal()] = new ControlCommand(type, streamId, null);
+            }
+        }
+    }
+
+    private final Type   type;
+    private final int    streamId;
+    private final String payload;
+
+    public ControlCommand(Type type, int streamId, String payload) {
+        this.type = type;
+        this.streamId = streamId;
+        this.payload = payload;
+    }
+
+    /**
+     * @return The shared instance of a command that has no payload
+     */
+    public static ControlCommand of(Type type, int streamId) {
+        return shared[streamId][type.ordinal()];
+    }
+
+    public static ControlCommand config(int streamId, String json) {
+        return new ControlCommand(Type.CONFIG, streamId, json);
+    }
+
+    /**
+     * @param json Settings to change on the stream while it is running
+     */
+    public static ControlCommand update(int streamId, String json) {
+        return new ControlCommand(Type.UPDATE, streamId, json);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public int getStreamId() {
+        return streamId;
+    }
+
+    /**
+     * @return The text sent along with the command, such as the JSON of a CONFIG command, or null
+     */
+    public String getPayload() {
+        return payload;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + streamId + "] " + (payload == null ? type.toString() : type + " " + payload);
+    }
+}
@@ -0,0 +1,96 @@
+package ml.dent.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.util.CharsetUtil;
+import ml.dent.util.Markers;
+
+import java.util.List;
+
+/**
+ * Decodes the {@link Markers} control protocol into {@link ControlCommand}s. A new decoder must be
+ * added to every channel, since it keeps the state of a half received config.
+ * <p>
+ * Single byte markers are dispatched as soon as they are read. A config is everything between two
+ * {@link Markers#CONFIG} bytes, and an update everything between two {@link Markers#UPDATE} bytes;
+ * the payload stays in the cumulation buffer until the closing marker arrives and is then decoded
+ * in place, without being copied byte by byte.
+ * <p>
+ * Commands go to stream 0 until a {@link Markers#SELECT_STREAM} byte followed by a one byte stream
+ * id selects another one. The selection lasts for the rest of the connection or until the next
+ * selection.
+ */
+public class ControlDecoder extends ByteToMessageDecoder {
+
+    public static final int MAX_CONFIG_LENGTH = 64 * 1024;
+
+    private boolean readingPayload;
+    // The marker that started the payload being read, and will end it
+    private byte    payloadMarker;
+    private boolean readingStreamId;
+    private int     selectedStream;
+    // How far past the reader index has already been searched for the end of the payload
+    private int     payloadScanned;
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+        while (in.isReadable()) {
+            if (readingPayload) {
+                int start = in.readerIndex();
+                int end = in.indexOf(start + payloadScanned, in.writerIndex(), payloadMarker);
+                if (end < 0) {
+                    payloadScanned = in.readableBytes();
+                    if (payloadScanned > MAX_CONFIG_LENGTH) {
+                        readingPayload = false;
+                        payloadScanned = 0;
+                        in.skipBytes(in.readableBytes());
+                        throw new TooLongFrameException("Payload longer than " + MAX_CONFIG_LENGTH + " bytes");
+                    }
+                    return;
+                }
+                String payload = in.toString(start, end - start, CharsetUtil.UTF_8);
+                if (payloadMarker == Markers.CONFIG) {
+                    out.add(ControlCommand.config(selectedStream, payload));
+                } else {
+                    out.add(ControlCommand.update(selectedStream, payload));
+                }
+                in.readerIndex(end + 1);
+                readingPayload = false;
+                payloadScanned = 0;
+                continue;
+            }
+
+            if (readingStreamId) {
+                selectedStream = in.readUnsignedByte();
+                readingStreamId = false;
+                continue;
+            }
+
+            byte marker = in.readByte();
+            switch (marker) {
+                case Markers.CONFIG:
+                case Markers.UPDATE:
+                    readingPayload = true;
+                    payloadMarker = marker;
+                    break;
+                case Markers.SELECT_STREAM:
+                    readingStreamId = true;
+                    break;
+                case Markers.START_VIDEO:
+                    out.add(ControlCommand.of(ControlCommand.Type.START_VIDEO, selectedStream));
+                    break;
+                case Markers.STOP_VIDEO:
+                    out.add(ControlCommand.of(ControlCommand.Type.STOP_VIDEO, selectedStream));
+                    break;
+                case Markers.PING_REQUEST:
+                    out.add(ControlCommand.of(ControlCommand.Type.PING, selectedStream));
+                    break;
+                case Markers.STATS_REQUEST:
+                    out.add(ControlCommand.of(ControlCommand.Type.STATS, selectedStream));
+                    break;
+            }
+        }
+    }
+}
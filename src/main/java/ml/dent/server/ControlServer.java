@@ -2,36 +2,78 @@ package ml.dent.server;
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
 import ml.dent.net.NetworkUtils;
+import ml.dent.net.SimpleNetworkClient;
+import ml.dent.net.TransportContext;
 import ml.dent.util.Markers;
+import ml.dent.video.BackpressurePolicy;
+import ml.dent.video.CaptureSettings;
+import ml.dent.video.CompositeInput;
+import ml.dent.video.Destination;
+import ml.dent.video.EncoderSettings;
+import ml.dent.video.GapPolicy;
+import ml.dent.video.PipelineStage;
+import ml.dent.video.QueueLevel;
+import ml.dent.video.QueueSettings;
+import ml.dent.video.RegionSettings;
+import ml.dent.video.Rendition;
 import ml.dent.video.VideoServer;
 import org.freedesktop.gstreamer.Bus;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 
 import java.io.File;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ControlServer {
 
+    private static final int MAX_WRITE_BUFFER_SIZE = 1 << 20;
+    private static final int MAX_SINK_BUFFERS      = 1024;
+
+    private static final long CONNECT_TIMEOUT_SECONDS = 30;
+
     private int port;
 
-    private StringBuffer config;
+    // Every configured stream, keyed by the id control clients select it with
+    private final ConcurrentMap<Integer, VideoServer> streams = new ConcurrentHashMap<>();
 
-    private VideoServer videoServer;
+    private final TransportContext transport;
+    private final CommandExecutor  commandExecutor;
 
     public ControlServer(int port) {
+        this(port, TransportContext.shared());
+    }
+
+    /**
+     * @param transport The event loops shared by this server and the video servers it configures
+     */
+    public ControlServer(int port, TransportContext transport) {
+        this(port, transport, new CommandExecutor());
+    }
+
+    public ControlServer(int port, TransportContext transport, CommandExecutor commandExecutor) {
         this.port = port;
-        config = new StringBuffer();
+        this.transport = transport;
+        this.commandExecutor = commandExecutor;
     }
 
     /**
@@ -40,24 +82,51 @@ public class ControlServer {
      *                              is trying to bind
      */
     public ChannelFuture start() throws InterruptedException {
-        EventLoopGroup group = new NioEventLoopGroup();
-
         ServerBootstrap boot = new ServerBootstrap();
-        boot.group(group).channel(NioServerSocketChannel.class)
+        boot.group(transport.group()).channel(transport.serverSocketChannelClass())
                 .childHandler(new ChannelInitializer<SocketChannel>() {
                     @Override
                     protected void initChannel(SocketChannel ch) {
-                        ch.pipeline().addLast(new ServerHandler());
+                        ch.pipeline().addLast(new ControlDecoder(), new ServerHandler());
                     }
                 });
 
         ChannelFuture future = boot.bind(port).sync();
+        future.channel().closeFuture().addListener(closed -> commandExecutor.shutdown());
 
         return future.channel().closeFuture();
     }
 
-    public void parseConfig(Channel notify) {
-        if (videoServer != null && videoServer.isConnectionActive()) {
+    /**
+     * Runs a command on the executor for its stream, so commands that block never hold up the event
+     * loop. The outcome of the command is reported to the requesting channel by the command itself.
+     */
+    private Future<?> submit(int streamId, Channel notify, Runnable command) {
+        try {
+            return commandExecutor.submit(streamId, command);
+        } catch (RejectedExecutionException e) {
+            NetworkUtils.sendMessage(notify, "Error: too many pending commands, please try again later");
+            return null;
+        }
+    }
+
+    /**
+     * @return Every configured stream by its id, as it changes
+     */
+    public Map<Integer, VideoServer> getStreams() {
+        return Collections.unmodifiableMap(streams);
+    }
+
+    /**
+     * @return The video server configured for a stream, or null if it has not been configured
+     */
+    public VideoServer getStream(int streamId) {
+        return streams.get(streamId);
+    }
+
+    public void parseConfig(int streamId, String config, Channel notify) {
+        VideoServer videoServer = streams.get(streamId);
+        if (videoServer != null && (videoServer.isConnectionActive() || videoServer.isReconnecting())) {
             NetworkUtils.sendMessage(notify, "Error: connection still running. Please stop the video before reconfiguring the server");
             return;
         }
@@ -66,11 +135,15 @@ public class ControlServer {
         JSONParser configParser = new JSONParser();
         boolean parseSuccess = false;
         VideoServer tmpServer = new VideoServer(null, -1);
+        tmpServer.setTransportContext(transport);
+        tmpServer.markConfigured();
+        // Added once the source is known, since whether the stream is encoded depends on it
+        List<Rendition> parsedRenditions = new ArrayList<>();
         try {
             JSONObject configOptions;
             try {
                 System.out.println(config);
-                configOptions = (JSONObject) configParser.parse(config.toString());
+                configOptions = (JSONObject) configParser.parse(config);
             } catch (Exception e) {
                 NetworkUtils.sendMessage(notify, "Error: Invalid JSON");
                 e.printStackTrace();
@@ -83,8 +156,31 @@ public class ControlServer {
             String videoSource = (String) configOptions.get("videoSource");
             Long tcpSourcePort = (Long) configOptions.get("tcpSourcePort");
             Long internalPort = (Long) configOptions.get("internalPort");
+            Long channel = (Long) configOptions.get("channel");
             Boolean enableSSL = (Boolean) configOptions.get("enableSSL");
+            Boolean verifySSL = (Boolean) configOptions.get("verifySSL");
+            Boolean openSSL = (Boolean) configOptions.get("openSSL");
             Boolean h264Encoded = (Boolean) configOptions.get("h264Encoded");
+            String backpressure = (String) configOptions.get("backpressure");
+            Boolean autoReconnect = (Boolean) configOptions.get("autoReconnect");
+            Long reconnectMinDelayMs = (Long) configOptions.get("reconnectMinDelayMs");
+            Long reconnectMaxDelayMs = (Long) configOptions.get("reconnectMaxDelayMs");
+            String gapPolicy = (String) configOptions.get("gapPolicy");
+            Long writeBufferSize = (Long) configOptions.get("writeBufferSize");
+            Long maxWriteDelayMs = (Long) configOptions.get("maxWriteDelayMs");
+            JSONArray destinations = (JSONArray) configOptions.get("destinations");
+            Boolean gopCache = (Boolean) configOptions.get("gopCache");
+            Long gopCacheMaxBytes = (Long) configOptions.get("gopCacheMaxBytes");
+            JSONObject queues = (JSONObject) configOptions.get("queues");
+            Long latencyBudgetMs = (Long) configOptions.get("latencyBudgetMs");
+            Boolean realtime = (Boolean) configOptions.get("realtime");
+            Boolean loop = (Boolean) configOptions.get("loop");
+            JSONArray inputs = (JSONArray) configOptions.get("inputs");
+            JSONArray renditions = (JSONArray) configOptions.get("renditions");
+            Long tileWidth = (Long) configOptions.get("tileWidth");
+            Long tileHeight = (Long) configOptions.get("tileHeight");
+            Long sinkMaxBuffers = (Long) configOptions.get("sinkMaxBuffers");
+            Boolean sinkDrop = (Boolean) configOptions.get("sinkDrop");
 
             StringBuilder returnMessage = new StringBuilder();
             if (host != null) {
@@ -109,12 +205,135 @@ public class ControlServer {
                     returnMessage.append("Error: expected value for \"internalPort\" must be between 1 and 65535, got ").append(internalPort);
                 }
             }
+            if (channel != null) {
+                if (channel >= 0) {
+                    tmpServer.setBounceChannel(channel.intValue());
+                } else {
+                    returnMessage.append("Error: value for \"channel\" must not be negative, got ").append(channel).append("\n");
+                }
+            }
             if (enableSSL != null) {
                 tmpServer.enableSSL(enableSSL);
             }
+            if (verifySSL != null) {
+                tmpServer.setVerifyCertificates(verifySSL);
+            }
+            if (openSSL != null) {
+                tmpServer.setPreferOpenSsl(openSSL);
+            }
             if (h264Encoded != null) {
                 tmpServer.setH264Encoded(h264Encoded);
             }
+            if (realtime != null) {
+                tmpServer.setRealtime(realtime);
+            }
+            if (loop != null) {
+                tmpServer.setLoop(loop);
+            }
+            if (sinkMaxBuffers != null) {
+                if (sinkMaxBuffers >= 1 && sinkMaxBuffers <= MAX_SINK_BUFFERS) {
+                    tmpServer.setSinkMaxBuffers(sinkMaxBuffers.intValue());
+                } else {
+                    returnMessage.append("Error: value for \"sinkMaxBuffers\" must be between 1 and ").append(MAX_SINK_BUFFERS)
+                            .append(", got ").append(sinkMaxBuffers).append("\n");
+                }
+            }
+            if (sinkDrop != null) {
+                tmpServer.setSinkDrop(sinkDrop);
+            }
+            if (tileWidth != null || tileHeight != null) {
+                long width = tileWidth != null ? tileWidth : VideoServer.DEFAULT_TILE_WIDTH;
+                long height = tileHeight != null ? tileHeight : VideoServer.DEFAULT_TILE_HEIGHT;
+                if (width >= 1 && width <= CaptureSettings.MAX_DIMENSION && height >= 1 && height <= CaptureSettings.MAX_DIMENSION) {
+                    tmpServer.setTileSize((int) width, (int) height);
+                } else {
+                    returnMessage.append("Error: values for \"tileWidth\" and \"tileHeight\" must be between 1 and ")
+                            .append(CaptureSettings.MAX_DIMENSION).append("\n");
+                }
+            }
+            if (backpressure != null) {
+                BackpressurePolicy policy = parseBackpressure(backpressure, returnMessage);
+                if (policy != null) {
+                    tmpServer.setBackpressurePolicy(policy);
+                }
+            }
+            if (autoReconnect != null) {
+                tmpServer.setAutoReconnect(autoReconnect);
+            }
+            if (reconnectMinDelayMs != null || reconnectMaxDelayMs != null) {
+                long minDelay = reconnectMinDelayMs != null ? reconnectMinDelayMs : SimpleNetworkClient.DEFAULT_RECONNECT_MIN_DELAY;
+                long maxDelay = reconnectMaxDelayMs != null ? reconnectMaxDelayMs : SimpleNetworkClient.DEFAULT_RECONNECT_MAX_DELAY;
+                if (minDelay >= 1 && maxDelay >= minDelay) {
+                    tmpServer.setReconnectDelay(minDelay, maxDelay);
+                } else {
+                    returnMessage.append("Error: values for \"reconnectMinDelayMs\" and \"reconnectMaxDelayMs\" must be positive with the minimum no larger than the maximum\n");
+                }
+            }
+            if (gapPolicy != null) {
+                GapPolicy policy = parseGapPolicy(gapPolicy, returnMessage);
+                if (policy != null) {
+                    tmpServer.setGapPolicy(policy);
+                }
+            }
+            if (writeBufferSize != null) {
+                if (writeBufferSize >= 1 && writeBufferSize <= MAX_WRITE_BUFFER_SIZE) {
+                    tmpServer.setWriteBufferSize(writeBufferSize.intValue());
+                } else {
+                    returnMessage.append("Error: value for \"writeBufferSize\" must be between 1 and ").append(MAX_WRITE_BUFFER_SIZE)
+                            .append(", got ").append(writeBufferSize).append("\n");
+                }
+            }
+            if (maxWriteDelayMs != null) {
+                if (maxWriteDelayMs >= 0) {
+                    tmpServer.setMaxWriteDelay(maxWriteDelayMs, TimeUnit.MILLISECONDS);
+                } else {
+                    returnMessage.append("Error: value for \"maxWriteDelayMs\" must not be negative, got ").append(maxWriteDelayMs).append("\n");
+                }
+            }
+            parseCaptureSettings(configOptions, tmpServer.getCaptureSettings(), returnMessage);
+            tmpServer.getRegionSettings().merge(parseRegionSettings(configOptions, returnMessage));
+            tmpServer.getEncoderSettings().merge(parseEncoderSettings(configOptions, returnMessage));
+            if (gopCache != null) {
+                tmpServer.setGopCacheEnabled(gopCache);
+            }
+            if (gopCacheMaxBytes != null) {
+                if (gopCacheMaxBytes >= 1 && gopCacheMaxBytes <= Integer.MAX_VALUE) {
+                    tmpServer.setGopCacheMaxBytes(gopCacheMaxBytes.intValue());
+                } else {
+                    returnMessage.append("Error: value for \"gopCacheMaxBytes\" must be positive, got ").append(gopCacheMaxBytes).append("\n");
+                }
+            }
+            if (queues != null) {
+                for (PipelineStage stage : PipelineStage.values()) {
+                    JSONObject stageOptions = (JSONObject) queues.get(stage.name().toLowerCase());
+                    if (stageOptions != null) {
+                        tmpServer.setQueueSettings(stage, parseQueueSettings(stageOptions, stage, returnMessage));
+                    }
+                }
+            }
+            if (latencyBudgetMs != null) {
+                if (latencyBudgetMs >= 1) {
+                    tmpServer.setLatencyBudget(latencyBudgetMs);
+                } else {
+                    returnMessage.append("Error: value for \"latencyBudgetMs\" must be positive, got ").append(latencyBudgetMs).append("\n");
+                }
+            }
+            if (destinations != null) {
+                for (int i = 0; i < destinations.size(); i++) {
+                    Destination destination = parseDestination((JSONObject) destinations.get(i), i, returnMessage);
+                    if (destination != null) {
+                        tmpServer.addDestination(destination);
+                    }
+                }
+            }
+            if (renditions != null) {
+                for (int i = 0; i < renditions.size(); i++) {
+                    Rendition rendition = parseRendition((JSONObject) renditions.get(i), i, host, port, returnMessage);
+                    if (rendition != null) {
+                        parsedRenditions.add(rendition);
+                    }
+                }
+            }
             String res = returnMessage.toString();
             if (!res.isEmpty()) {
                 NetworkUtils.sendMessage(notify, res);
@@ -156,43 +375,548 @@ public class ControlServer {
                     tmpServer.setSource(videoSource);
                     parseSuccess = true;
                     return;
+                case "file":
+                    if (videoSource == null) {
+                        NetworkUtils.sendMessage(notify, "Error: expected value for \"videoSource\", got null");
+                        return;
+                    }
+                    if (!new File(videoSource).isFile()) {
+                        NetworkUtils.sendMessage(notify, "Error: invalid file path for value \"videoSource\"");
+                        return;
+                    }
+                    tmpServer.setFileSource(videoSource);
+                    // Recordings are replayed as they are unless asked to be encoded again
+                    if (h264Encoded == null) {
+                        tmpServer.setH264Encoded(true);
+                    }
+                    if (tmpServer.isUnpacedFile()) {
+                        NetworkUtils.sendMessage(notify, "Info: \"framerate\" is not set, a raw H.264 file is only played back in real time if it carries its own timing");
+                    }
+                    parseSuccess = true;
+                    return;
+                case "composite":
+                    if (inputs == null || inputs.size() < 2 || inputs.size() > VideoServer.MAX_COMPOSITE_INPUTS) {
+                        NetworkUtils.sendMessage(notify, "Error: value for \"inputs\" must be a list of 2 to "
+                                + VideoServer.MAX_COMPOSITE_INPUTS + " sources");
+                        return;
+                    }
+                    if (h264Encoded != null && h264Encoded) {
+                        NetworkUtils.sendMessage(notify, "Error: composite streams are always encoded, \"h264Encoded\" must not be set");
+                        return;
+                    }
+                    StringBuilder inputErrors = new StringBuilder();
+                    List<CompositeInput> compositeInputs = new ArrayList<>();
+                    for (int i = 0; i < inputs.size(); i++) {
+                        CompositeInput input = parseCompositeInput((JSONObject) inputs.get(i), i, inputErrors);
+                        if (input != null) {
+                            compositeInputs.add(input);
+                        }
+                    }
+                    if (inputErrors.length() > 0) {
+                        NetworkUtils.sendMessage(notify, inputErrors.toString());
+                        return;
+                    }
+                    tmpServer.setCompositeSource(compositeInputs);
+                    parseSuccess = true;
+                    return;
+                case "test":
+                    tmpServer.setTestSource(videoSource);
+                    parseSuccess = true;
+                    return;
                 case "default":
                     tmpServer.setSource();
                     parseSuccess = true;
                     return;
                 default:
                     NetworkUtils.sendMessage(notify,
-                            "Error: exptected value options \"ip_camera\", \"webcam\", or \"default\" for  value \"videoType\", got "
+                            "Error: exptected value options \"ip_camera\", \"webcam\", \"file\", \"test\", \"composite\", or \"default\" for  value \"videoType\", got "
                                     + videoType);
             }
         } finally {
+            if (parseSuccess && !parsedRenditions.isEmpty()) {
+                if (tmpServer.getH264Encoded()) {
+                    NetworkUtils.sendMessage(notify, "Error: \"renditions\" need a stream that encodes its video, \"h264Encoded\" must be false");
+                    parseSuccess = false;
+                } else {
+                    for (Rendition rendition : parsedRenditions) {
+                        tmpServer.addRendition(rendition);
+                    }
+                }
+            }
+            VideoServer replaced;
             if (parseSuccess) {
-                videoServer = tmpServer;
+                replaced = streams.put(streamId, tmpServer);
                 NetworkUtils.sendMessage(notify, Markers.CONFIG);
                 NetworkUtils.sendMessage(notify, "Success: video server configured");
+                prepare(tmpServer, notify);
+            } else {
+                replaced = streams.remove(streamId);
+            }
+            if (replaced != null) {
+                // Releases the pipeline it prepared, and any destinations left connected
+                replaced.stopStream();
+                replaced.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Changes settings of a configured stream while it keeps running. Only encoder settings and the
+     * cropping and scaling can be updated, see {@link VideoServer#updateEncoder(EncoderSettings)} and
+     * {@link VideoServer#updateRegion(RegionSettings)}.
+     */
+    public void updateStream(int streamId, String update, Channel notify) {
+        VideoServer videoServer = streams.get(streamId);
+        if (videoServer == null) {
+            NetworkUtils.sendMessage(notify, "Error: request to update stream before configuration received");
+            return;
+        }
+        JSONObject updateOptions;
+        try {
+            updateOptions = (JSONObject) new JSONParser().parse(update);
+        } catch (Exception e) {
+            NetworkUtils.sendMessage(notify, "Error: Invalid JSON");
+            return;
+        }
+        StringBuilder returnMessage = new StringBuilder();
+        EncoderSettings changes = parseEncoderSettings(updateOptions, returnMessage);
+        RegionSettings regionChanges = parseRegionSettings(updateOptions, returnMessage);
+        String res = returnMessage.toString();
+        if (!res.isEmpty()) {
+            NetworkUtils.sendMessage(notify, res);
+            return;
+        }
+        if (!changes.isSet() && !regionChanges.isSet()) {
+            NetworkUtils.sendMessage(notify, "Error: update has no settings that can be changed");
+            return;
+        }
+        if (videoServer.getH264Encoded()) {
+            NetworkUtils.sendMessage(notify, "Error: stream is already h264 encoded and has no encoder to update");
+            return;
+        }
+        if (regionChanges.isSet()) {
+            videoServer.updateRegion(regionChanges);
+        }
+        List<String> deferredChanges = Collections.emptyList();
+        if (changes.isSet()) {
+            try {
+                deferredChanges = videoServer.updateEncoder(changes);
+            } catch (IllegalStateException e) {
+                // A prepared pipeline is rebuilt with the new settings, which can fail to preroll
+                NetworkUtils.sendMessage(notify, "Error: failed to prepare video pipeline, it will be built again on start: " + e.getMessage());
+                return;
+            }
+        }
+        for (String deferred : deferredChanges) {
+            NetworkUtils.sendMessage(notify, "Info: \"" + deferred + "\" will take effect the next time the video is started");
+        }
+        NetworkUtils.sendMessage(notify, Markers.UPDATE);
+        NetworkUtils.sendMessage(notify, "Success: stream updated");
+    }
+
+    /**
+     * Reads the encoder keys of a config or update. Keys that are missing are left unset.
+     */
+    private EncoderSettings parseEncoderSettings(JSONObject options, StringBuilder returnMessage) {
+        Long bitrate = (Long) options.get("bitrate");
+        String speedPreset = (String) options.get("speedPreset");
+        Long keyIntMax = (Long) options.get("keyIntMax");
+        Long encoderThreads = (Long) options.get("encoderThreads");
+        Boolean slicedThreads = (Boolean) options.get("slicedThreads");
+        String rateControl = (String) options.get("rateControl");
+
+        EncoderSettings settings = new EncoderSettings();
+        if (bitrate != null) {
+            if (bitrate >= 1 && bitrate <= EncoderSettings.MAX_BITRATE) {
+                settings.setBitrate(bitrate.intValue());
+            } else {
+                returnMessage.append("Error: value for \"bitrate\" must be between 1 and ").append(EncoderSettings.MAX_BITRATE)
+                        .append(" kbit/s, got ").append(bitrate).append("\n");
+            }
+        }
+        if (speedPreset != null) {
+            if (Arrays.asList(EncoderSettings.SPEED_PRESETS).contains(speedPreset)) {
+                settings.setSpeedPreset(speedPreset);
+            } else {
+                returnMessage.append("Error: expected value options ").append(Arrays.toString(EncoderSettings.SPEED_PRESETS))
+                        .append(" for value \"speedPreset\", got ").append(speedPreset).append("\n");
+            }
+        }
+        if (keyIntMax != null) {
+            if (keyIntMax >= 0 && keyIntMax <= Integer.MAX_VALUE) {
+                settings.setKeyIntMax(keyIntMax.intValue());
+            } else {
+                returnMessage.append("Error: value for \"keyIntMax\" must not be negative, got ").append(keyIntMax).append("\n");
+            }
+        }
+        if (encoderThreads != null) {
+            if (encoderThreads >= 0 && encoderThreads <= 128) {
+                settings.setThreads(encoderThreads.intValue());
+            } else {
+                returnMessage.append("Error: value for \"encoderThreads\" must be between 0 and 128, got ").append(encoderThreads).append("\n");
+            }
+        }
+        if (slicedThreads != null) {
+            settings.setSlicedThreads(slicedThreads);
+        }
+        if (rateControl != null) {
+            if (Arrays.asList(EncoderSettings.RATE_CONTROLS).contains(rateControl)) {
+                settings.setRateControl(rateControl);
+            } else {
+                returnMessage.append("Error: expected value options ").append(Arrays.toString(EncoderSettings.RATE_CONTROLS))
+                        .append(" for value \"rateControl\", got ").append(rateControl).append("\n");
+            }
+        }
+        return settings;
+    }
+
+    private void parseCaptureSettings(JSONObject options, CaptureSettings settings, StringBuilder returnMessage) {
+        Long width = (Long) options.get("width");
+        Long height = (Long) options.get("height");
+        Long framerate = (Long) options.get("framerate");
+        String format = (String) options.get("format");
+
+        if (width != null) {
+            if (width >= 1 && width <= CaptureSettings.MAX_DIMENSION) {
+                settings.setWidth(width.intValue());
+            } else {
+                returnMessage.append("Error: value for \"width\" must be between 1 and ").append(CaptureSettings.MAX_DIMENSION)
+                        .append(", got ").append(width).append("\n");
+            }
+        }
+        if (height != null) {
+            if (height >= 1 && height <= CaptureSettings.MAX_DIMENSION) {
+                settings.setHeight(height.intValue());
+            } else {
+                returnMessage.append("Error: value for \"height\" must be between 1 and ").append(CaptureSettings.MAX_DIMENSION)
+                        .append(", got ").append(height).append("\n");
+            }
+        }
+        if (framerate != null) {
+            if (framerate >= 1 && framerate <= CaptureSettings.MAX_FRAMERATE) {
+                settings.setFramerate(framerate.intValue());
+            } else {
+                returnMessage.append("Error: value for \"framerate\" must be between 1 and ").append(CaptureSettings.MAX_FRAMERATE)
+                        .append(", got ").append(framerate).append("\n");
+            }
+        }
+        if (format != null) {
+            // Ends up in the pipeline description, so only names are let through
+            if (format.matches("[A-Za-z0-9_]+")) {
+                settings.setFormat(format);
+            } else {
+                returnMessage.append("Error: value for \"format\" must be a GStreamer video format such as \"I420\" or \"")
+                        .append(CaptureSettings.MJPEG).append("\", got ").append(format).append("\n");
+            }
+        }
+    }
+
+    /**
+     * Reads one entry of the "inputs" list of a composite stream, which takes the same "videoType",
+     * "videoSource" and "tcpSourcePort" values as a stream of its own
+     */
+    private CompositeInput parseCompositeInput(JSONObject options, int index, StringBuilder returnMessage) {
+        String name = "inputs[" + index + "].";
+        String videoType = (String) options.get("videoType");
+        String videoSource = (String) options.get("videoSource");
+        Long tcpSourcePort = (Long) options.get("tcpSourcePort");
+
+        if (tcpSourcePort != null) {
+            if (videoSource == null || tcpSourcePort < 1 || tcpSourcePort > 65535) {
+                returnMessage.append("Error: \"").append(name).append("tcpSourcePort\" must be between 1 and 65535 and come with \"")
+                        .append(name).append("videoSource\"\n");
+                return null;
+            }
+            return new CompositeInput(VideoServer.Camera.TCPSRC, videoSource + ":" + tcpSourcePort);
+        }
+        if (videoType == null) {
+            returnMessage.append("Error: expected value for \"").append(name).append("videoType\", got null\n");
+            return null;
+        }
+        switch (videoType) {
+            case "ip_camera":
+                try {
+                    if (videoSource != null) {
+                        return new CompositeInput(VideoServer.Camera.IP_CAMERA, new URI(videoSource).toString());
+                    }
+                } catch (URISyntaxException e) {
+                    // Reported below
+                }
+                returnMessage.append("Error: invalid uri for value \"").append(name).append("videoSource\"\n");
+                return null;
+            case "webcam":
+                if (videoSource == null || !new File(videoSource).exists()) {
+                    returnMessage.append("Error: invalid file path for value \"").append(name).append("videoSource\"\n");
+                    return null;
+                }
+                return new CompositeInput(VideoServer.Camera.WEBCAM, videoSource);
+            case "file":
+                if (videoSource == null || !new File(videoSource).isFile()) {
+                    returnMessage.append("Error: invalid file path for value \"").append(name).append("videoSource\"\n");
+                    return null;
+                }
+                return new CompositeInput(VideoServer.Camera.FILE, videoSource);
+            case "test":
+                return new CompositeInput(VideoServer.Camera.TEST, videoSource);
+            case "default":
+                return new CompositeInput(VideoServer.Camera.DEFAULT, null);
+            default:
+                returnMessage.append("Error: expected value options \"ip_camera\", \"webcam\", \"file\", \"test\", or \"default\" for value \"")
+                        .append(name).append("videoType\", got ").append(videoType).append("\n");
+                return null;
+        }
+    }
+
+    /**
+     * Parses one entry of the "renditions" array: the relay connection it is sent on, with the same
+     * keys as a destination but defaulting to the stream's host and port, the "width" and "height"
+     * it is scaled to, and the encoder keys of a stream
+     *
+     * @return The rendition, or null if the entry had errors, which are appended to returnMessage
+     */
+    private Rendition parseRendition(JSONObject options, int index, String host, Long port, StringBuilder returnMessage) {
+        String name = "renditions[" + index + "].";
+        int errors = returnMessage.length();
+        Destination destination = parseDestination(options, name, host, port, returnMessage);
+        Integer width = parseDimension(options, name, "width", returnMessage);
+        Integer height = parseDimension(options, name, "height", returnMessage);
+        EncoderSettings encoderSettings = parseEncoderSettings(options, returnMessage);
+        if (returnMessage.length() != errors) {
+            return null;
+        }
+        Rendition rendition = new Rendition(destination);
+        // 0 keeps the size, like the stream's own scale
+        rendition.setSize(width == null || width == 0 ? null : width, height == null || height == 0 ? null : height);
+        rendition.getEncoderSettings().merge(encoderSettings);
+        return rendition;
+    }
+
+    /**
+     * Reads the "crop" object, with the pixels to cut off each edge, and the "scale" object, with
+     * the size to encode at
+     */
+    private RegionSettings parseRegionSettings(JSONObject options, StringBuilder returnMessage) {
+        JSONObject crop = (JSONObject) options.get("crop");
+        JSONObject scale = (JSONObject) options.get("scale");
+
+        RegionSettings settings = new RegionSettings();
+        if (crop != null) {
+            settings.setCropLeft(parseDimension(crop, "crop.", "left", returnMessage));
+            settings.setCropRight(parseDimension(crop, "crop.", "right", returnMessage));
+            settings.setCropTop(parseDimension(crop, "crop.", "top", returnMessage));
+            settings.setCropBottom(parseDimension(crop, "crop.", "bottom", returnMessage));
+        }
+        if (scale != null) {
+            settings.setScaleWidth(parseDimension(scale, "scale.", "width", returnMessage));
+            settings.setScaleHeight(parseDimension(scale, "scale.", "height", returnMessage));
+        }
+        return settings;
+    }
+
+    private Integer parseDimension(JSONObject options, String prefix, String key, StringBuilder returnMessage) {
+        Long value = (Long) options.get(key);
+        if (value == null) {
+            return null;
+        }
+        if (value >= 0 && value <= RegionSettings.MAX_DIMENSION) {
+            return value.intValue();
+        }
+        returnMessage.append("Error: value for \"").append(prefix).append(key).append("\" must be between 0 and ")
+                .append(RegionSettings.MAX_DIMENSION).append(", got ").append(value).append("\n");
+        return null;
+    }
+
+    /**
+     * Reads the queue limits of one stage, an entry of the "queues" object keyed by the stage name
+     */
+    private QueueSettings parseQueueSettings(JSONObject options, PipelineStage stage, StringBuilder returnMessage) {
+        String name = "queues." + stage.name().toLowerCase() + ".";
+        Long maxBuffers = (Long) options.get("maxBuffers");
+        Long maxBytes = (Long) options.get("maxBytes");
+        Long maxTimeMs = (Long) options.get("maxTimeMs");
+        String leaky = (String) options.get("leaky");
+
+        QueueSettings settings = new QueueSettings();
+        if (maxBuffers != null) {
+            if (maxBuffers >= 0 && maxBuffers <= Integer.MAX_VALUE) {
+                settings.setMaxBuffers(maxBuffers.intValue());
+            } else {
+                returnMessage.append("Error: value for \"").append(name).append("maxBuffers\" must not be negative, got ").append(maxBuffers).append("\n");
+            }
+        }
+        if (maxBytes != null) {
+            if (maxBytes >= 0 && maxBytes <= 0xffffffffL) {
+                settings.setMaxBytes(maxBytes);
+            } else {
+                returnMessage.append("Error: value for \"").append(name).append("maxBytes\" must be between 0 and 4294967295, got ").append(maxBytes).append("\n");
+            }
+        }
+        if (maxTimeMs != null) {
+            if (maxTimeMs >= 0) {
+                settings.setMaxTimeMs(maxTimeMs);
+            } else {
+                returnMessage.append("Error: value for \"").append(name).append("maxTimeMs\" must not be negative, got ").append(maxTimeMs).append("\n");
+            }
+        }
+        if (leaky != null) {
+            if (Arrays.asList(QueueSettings.LEAKY_MODES).contains(leaky)) {
+                settings.setLeaky(leaky);
             } else {
-                videoServer = null;
+                returnMessage.append("Error: expected value options ").append(Arrays.toString(QueueSettings.LEAKY_MODES))
+                        .append(" for value \"").append(name).append("leaky\", got ").append(leaky).append("\n");
             }
         }
+        return settings;
     }
 
-    public void startVideo(Channel notify) {
+    /**
+     * Builds and prerolls the pipeline of a configured stream, so that starting it only has to set
+     * it playing
+     */
+    private void prepare(VideoServer videoServer, Channel notify) {
+        try {
+            videoServer.preparePipeline();
+            NetworkUtils.sendMessage(notify, "Info: video pipeline prepared");
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            NetworkUtils.sendMessage(notify, "Error: failed to prepare video pipeline, it will be built again on start: " + e.getMessage());
+        }
+    }
+
+    private BackpressurePolicy parseBackpressure(String backpressure, StringBuilder returnMessage) {
+        switch (backpressure) {
+            case "block":
+                return BackpressurePolicy.BLOCK;
+            case "drop_to_keyframe":
+                return BackpressurePolicy.DROP_TO_KEYFRAME;
+            case "drop_oldest":
+                return BackpressurePolicy.DROP_OLDEST;
+            default:
+                returnMessage.append("Error: expected value options \"block\", \"drop_to_keyframe\", or \"drop_oldest\" for value \"backpressure\", got ")
+                        .append(backpressure).append("\n");
+                return null;
+        }
+    }
+
+    private GapPolicy parseGapPolicy(String gapPolicy, StringBuilder returnMessage) {
+        switch (gapPolicy) {
+            case "discard":
+                return GapPolicy.DISCARD;
+            case "buffer":
+                return GapPolicy.BUFFER;
+            default:
+                returnMessage.append("Error: expected value options \"discard\" or \"buffer\" for value \"gapPolicy\", got ")
+                        .append(gapPolicy).append("\n");
+                return null;
+        }
+    }
+
+    /**
+     * Parses one entry of the "destinations" array, an additional relay connection the encoded
+     * stream is sent to
+     *
+     * @return The destination, or null if the entry had errors, which are appended to returnMessage
+     */
+    private Destination parseDestination(JSONObject options, int index, StringBuilder returnMessage) {
+        return parseDestination(options, "destinations[" + index + "].", null, null, returnMessage);
+    }
+
+    /**
+     * @param name        The prefix of the entry's keys in error messages
+     * @param defaultHost The host used if the entry has none, or null if it must have one
+     * @param defaultPort The port used if the entry has none, or null if it must have one
+     */
+    private Destination parseDestination(JSONObject options, String name, String defaultHost, Long defaultPort,
+                                         StringBuilder returnMessage) {
+        String host = options.containsKey("host") ? (String) options.get("host") : defaultHost;
+        Long port = options.containsKey("port") ? (Long) options.get("port") : defaultPort;
+        Long channel = (Long) options.get("channel");
+        Long internalPort = (Long) options.get("internalPort");
+        Boolean enableSSL = (Boolean) options.get("enableSSL");
+        Boolean verifySSL = (Boolean) options.get("verifySSL");
+        Boolean openSSL = (Boolean) options.get("openSSL");
+        String backpressure = (String) options.get("backpressure");
+        String gapPolicy = (String) options.get("gapPolicy");
+
+        int errors = returnMessage.length();
+        if (host == null) {
+            returnMessage.append("Error: expected value for \"").append(name).append("host\", got null\n");
+        }
+        if (port == null || port < 1 || port > 65535) {
+            returnMessage.append("Error: value for \"").append(name).append("port\" must be between 1 and 65535, got ").append(port).append("\n");
+        }
+        if (channel == null || channel < 0) {
+            returnMessage.append("Error: value for \"").append(name).append("channel\" must not be negative, got ").append(channel).append("\n");
+        }
+        if (internalPort != null && (internalPort < 1 || internalPort > 65535)) {
+            returnMessage.append("Error: value for \"").append(name).append("internalPort\" must be between 1 and 65535, got ").append(internalPort).append("\n");
+        }
+        BackpressurePolicy backpressurePolicy = backpressure != null ? parseBackpressure(backpressure, returnMessage) : null;
+        GapPolicy gap = gapPolicy != null ? parseGapPolicy(gapPolicy, returnMessage) : null;
+        if (returnMessage.length() != errors) {
+            return null;
+        }
+
+        Destination destination = new Destination(host, port.intValue(), channel.intValue());
+        SimpleNetworkClient client = destination.getClient();
+        client.setTransportContext(transport);
+        if (internalPort != null) {
+            client.enableProxy(true);
+            client.setInternalPort(internalPort.intValue());
+        }
+        if (enableSSL != null) {
+            client.enableSSL(enableSSL);
+        }
+        if (verifySSL != null) {
+            client.setVerifyCertificates(verifySSL);
+        }
+        if (openSSL != null) {
+            client.setPreferOpenSsl(openSSL);
+        }
+        if (backpressurePolicy != null) {
+            destination.setBackpressurePolicy(backpressurePolicy);
+        }
+        if (gap != null) {
+            destination.setGapPolicy(gap);
+        }
+        return destination;
+    }
+
+    /**
+     * Connects a configured stream and starts it
+     *
+     * @return Whether this call connected the stream, in which case it has to be stopped by whoever
+     * asked for it to start, even if starting the pipeline failed. A stream that was already running
+     * is left to whoever started it.
+     */
+    public boolean startVideo(int streamId, Channel notify) {
         System.out.println("Start video method");
+        VideoServer videoServer = streams.get(streamId);
         if (videoServer == null) {
             NetworkUtils.sendMessage(notify, "Error: request to start video before configuration received");
-            return;
+            return false;
         }
-        if (videoServer.isConnectionActive()) {
+        // A stream that lost its connection is still running while it reconnects, connecting it again
+        // would leave the first connection behind
+        if (videoServer.isConnectionActive() || videoServer.isReconnecting() || videoServer.streamStarted()) {
             NetworkUtils.sendMessage(notify, "Error: connection to server already active");
+            return false;
         }
+        boolean connected = false;
         try {
+            // Runs on the command executor, so waiting here only holds up later commands for this stream
             ChannelFuture cf = videoServer.connect();
-            cf.awaitUninterruptibly();
+            if (!cf.awaitUninterruptibly(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                NetworkUtils.sendMessage(notify, "Error: timed out connecting to server");
+                cf.channel().close();
+                return false;
+            }
             if (cf.isSuccess()) {
                 NetworkUtils.sendMessage(notify, "Info: successfully connected to server");
+                connected = true;
             } else {
                 NetworkUtils.sendMessage(notify, "Error: failed to connect to server");
-                return;
+                return false;
             }
             GenericFutureListener<? extends Future<? super Void>> sendDisconnectMessage = future -> NetworkUtils.sendMessage(notify, "Info: disconnected from server");
             videoServer.closeFuture().addListener(sendDisconnectMessage);
@@ -210,12 +934,38 @@ public class ControlServer {
             if (videoServer.streamStarted()) {
                 NetworkUtils.sendMessage(notify, "Success: video server started");
             }
+
+            // The other destinations connect in the background, the stream is already running
+            List<ChannelFuture> destinations = videoServer.connectDestinations();
+            for (int i = 0; i < destinations.size(); i++) {
+                int index = i;
+                destinations.get(i).addListener(future -> {
+                    if (future.isSuccess()) {
+                        NetworkUtils.sendMessage(notify, "Info: successfully connected to destination " + index);
+                    } else {
+                        NetworkUtils.sendMessage(notify, "Error: failed to connect to destination " + index);
+                    }
+                });
+            }
+            return true;
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            NetworkUtils.sendMessage(notify, "Error: failed to start video: " + e.getMessage());
+            return connected;
         } finally {
             NetworkUtils.sendMessage(notify, "Info: starting video attempted");
         }
     }
 
-    public void stopVideo(Channel notify) {
+    /**
+     * Stops a stream and closes its connections
+     *
+     * @param prepareAgain Whether to prepare the pipeline again right away, so the next start is
+     *                     quick. Otherwise the devices and encoder it holds are released until the
+     *                     next start.
+     */
+    public void stopVideo(int streamId, Channel notify, boolean prepareAgain) {
+        VideoServer videoServer = streams.get(streamId);
         if (videoServer == null) {
             NetworkUtils.sendMessage(notify, "Error: request to stop video before configuration received");
             return;
@@ -223,74 +973,172 @@ public class ControlServer {
         if (videoServer.streamStarted()) {
             videoServer.stopStream();
         }
-        if (videoServer.isConnectionActive()) {
-            videoServer.disconnect().awaitUninterruptibly(5, TimeUnit.SECONDS);
+        // Also closes the other destinations, which may still be connected after the stream's own
+        // connection was lost
+        Future<?> disconnected = videoServer.disconnect();
+        if (disconnected != null) {
+            disconnected.awaitUninterruptibly(5, TimeUnit.SECONDS);
         }
         NetworkUtils.sendMessage(notify, "Info: video stream stopped");
         NetworkUtils.sendMessage(notify, Markers.STOP_VIDEO);
+        // The next start is timed from here rather than from the original config
+        videoServer.markConfigured();
+        // Ready for the next start, unless the stream was reconfigured or removed in the meantime
+        if (prepareAgain && streams.get(streamId) == videoServer) {
+            prepare(videoServer, notify);
+        }
     }
 
-    private boolean readingConfig;
+    class ServerHandler extends SimpleChannelInboundHandler<ControlCommand> {
+
+        // The streams this client has started, which are stopped if the client goes away. Only
+        // touched on the channel's event loop, once the start or stop command has run.
+        private final Set<Integer> startedStreams = new HashSet<>();
 
-    class ServerHandler extends ChannelInboundHandlerAdapter {
         @Override
         @SuppressWarnings("unchecked")
-        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-            ByteBuf buf = (ByteBuf) msg;
-            byte[] bytes = new byte[buf.readableBytes()];
-            buf.readBytes(bytes);
-
-            for (byte b : bytes) {
-                if (readingConfig) {
-                    if (b == Markers.CONFIG) {
-                        readingConfig = false;
-                        System.out.println("Recv end config byte");
-                        parseConfig(ctx.channel());
-                    } else {
-                        config.append((char) b);
+        protected void channelRead0(ChannelHandlerContext ctx, ControlCommand command) {
+            int streamId = command.getStreamId();
+            switch (command.getType()) {
+                case CONFIG:
+                    System.out.println("Recv config for stream " + streamId);
+                    submit(streamId, ctx.channel(), () -> parseConfig(streamId, command.getPayload(), ctx.channel()));
+                    break;
+                case UPDATE:
+                    System.out.println("Recv update for stream " + streamId);
+                    submit(streamId, ctx.channel(), () -> updateStream(streamId, command.getPayload(), ctx.channel()));
+                    break;
+                case START_VIDEO:
+                    System.out.println("Starting video on stream " + streamId);
+                    submit(streamId, ctx.channel(), () -> {
+                        if (startVideo(streamId, ctx.channel())) {
+                            ctx.channel().eventLoop().execute(() -> started(streamId, ctx.channel()));
+                        }
+                    });
+                    break;
+                case STOP_VIDEO:
+                    System.out.println("Stopping video on stream " + streamId);
+                    submit(streamId, ctx.channel(), () -> {
+                        stopVideo(streamId, ctx.channel(), true);
+                        ctx.channel().eventLoop().execute(() -> startedStreams.remove(streamId));
+                    });
+                    break;
+                case PING:
+                    VideoServer videoServer = streams.get(streamId);
+                    JSONObject status = new JSONObject();
+                    status.put("stream", streamId);
+                    status.put("isConnected", videoServer != null && videoServer.isConnectionActive());
+                    status.put("connectionAttempted", videoServer != null && videoServer.connectionAttempted());
+                    status.put("isStreaming", videoServer != null && videoServer.streamStarted());
+                    status.put("isReconnecting", videoServer != null && videoServer.isReconnecting());
+                    status.put("droppedBytes", videoServer != null ? videoServer.getDroppedBytes() : 0L);
+                    status.put("droppedFrames", videoServer != null ? videoServer.getDroppedFrames() : 0L);
+                    status.put("startupTiming", videoServer != null ? videoServer.getStartupTiming().toString() : "");
+                    if (videoServer != null) {
+                        JSONArray destinations = new JSONArray();
+                        List<Destination> all = videoServer.getDestinations();
+                        for (int i = 1; i < all.size(); i++) {
+                            Destination destination = all.get(i);
+                            JSONObject destinationStatus = new JSONObject();
+                            destinationStatus.put("isConnected", destination.getClient().isConnectionActive());
+                            destinationStatus.put("isReconnecting", destination.getClient().isReconnecting());
+                            destinationStatus.put("droppedBytes", destination.getDroppedBytes());
+                            destinationStatus.put("droppedFrames", destination.getDroppedFrames());
+                            destinations.add(destinationStatus);
+                        }
+                        status.put("destinations", destinations);
                     }
-                } else {
-                    switch (b) {
-                        case Markers.CONFIG:
-                            readingConfig = true;
-                            config = new StringBuffer();
-                            System.out.println("Recv start config byte");
-                            break;
-                        case Markers.START_VIDEO:
-                            System.out.println("Starting video");
-                            startVideo(ctx.channel());
-                            break;
-                        case Markers.STOP_VIDEO:
-                            System.out.println("Stopping video");
-                            stopVideo(ctx.channel());
-                            break;
-                        case Markers.PING_REQUEST:
-                            JSONObject status = new JSONObject();
-                            status.put("isConnected", videoServer != null && videoServer.isConnectionActive());
-                            status.put("connectionAttempted", videoServer != null && videoServer.connectionAttempted());
-                            status.put("isStreaming", videoServer != null && videoServer.streamStarted());
-                            byte[] statusBytes = status.toJSONString().getBytes();
-                            ByteBuf response = Unpooled.copiedBuffer(new byte[]{Markers.PING_RESPONSE}, statusBytes, new byte[]{Markers.PING_RESPONSE});
-                            ctx.writeAndFlush(response);
-                            break;
+                    if (videoServer != null) {
+                        JSONArray queueLevels = new JSONArray();
+                        for (QueueLevel level : videoServer.getQueueLevels()) {
+                            JSONObject queueStatus = new JSONObject();
+                            queueStatus.put("name", level.getName());
+                            queueStatus.put("buffers", level.getBuffers());
+                            queueStatus.put("bytes", level.getBytes());
+                            queueStatus.put("timeMs", TimeUnit.NANOSECONDS.toMillis(level.getTimeNanos()));
+                            queueLevels.add(queueStatus);
+                        }
+                        status.put("queues", queueLevels);
                     }
-                }
+                    JSONArray configured = new JSONArray();
+                    configured.addAll(streams.keySet());
+                    status.put("streams", configured);
+                    String statusString = status.toJSONString();
+                    ByteBuf response = ctx.alloc().ioBuffer(ByteBufUtil.utf8MaxBytes(statusString) + 2);
+                    response.writeByte(Markers.PING_RESPONSE);
+                    ByteBufUtil.writeUtf8(response, statusString);
+                    response.writeByte(Markers.PING_RESPONSE);
+                    ctx.writeAndFlush(response);
+                    break;
+                case STATS:
+                    String statsString = StatsReport.toJson(streamId, streams.get(streamId)).toJSONString();
+                    ByteBuf statsResponse = ctx.alloc().ioBuffer(ByteBufUtil.utf8MaxBytes(statsString) + 2);
+                    statsResponse.writeByte(Markers.STATS_RESPONSE);
+                    ByteBufUtil.writeUtf8(statsResponse, statsString);
+                    statsResponse.writeByte(Markers.STATS_RESPONSE);
+                    ctx.writeAndFlush(statsResponse);
+                    break;
+            }
+        }
+
+        /**
+         * Records a stream this client has started. If the client went away while it was starting,
+         * it is stopped right away instead.
+         */
+        private void started(int streamId, Channel channel) {
+            if (channel.isActive()) {
+                startedStreams.add(streamId);
+            } else {
+                stopStarted(streamId, channel);
             }
+        }
 
-            super.channelRead(ctx, msg);
+        /**
+         * Stops a stream this client started, a stream must never keep running once its controller
+         * is gone. Its pipeline is not prepared again, so nothing stays open for a controller that
+         * may never come back.
+         *
+         * @return The future of the stop, or null if it already happened
+         */
+        private Future<?> stopStarted(int streamId, Channel channel) {
+            try {
+                return commandExecutor.submitAlways(streamId, () -> stopVideo(streamId, channel, false));
+            } catch (RejectedExecutionException e) {
+                // The executor is shutting down, so nothing else will stop it
+                stopVideo(streamId, channel, false);
+                return null;
+            }
         }
 
         @Override
         public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-            stopVideo(ctx.channel());
+            for (int streamId : startedStreams) {
+                stopStarted(streamId, ctx.channel());
+            }
+            startedStreams.clear();
             super.channelInactive(ctx);
         }
 
         @Override
         public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
-            stopVideo(ctx.channel());
             cause.printStackTrace();
-            videoServer.closeFuture().addListener(listener -> ctx.close());
+            // Close once every stream this client started has been stopped
+            AtomicInteger pending = new AtomicInteger(startedStreams.size() + 1);
+            Runnable stopped = () -> {
+                if (pending.decrementAndGet() == 0) {
+                    ctx.close();
+                }
+            };
+            for (int streamId : startedStreams) {
+                Future<?> stop = stopStarted(streamId, ctx.channel());
+                if (stop != null) {
+                    stop.addListener(listener -> stopped.run());
+                } else {
+                    stopped.run();
+                }
+            }
+            startedStreams.clear();
+            stopped.run();
         }
     }
 }
@@ -0,0 +1,150 @@
+package ml.dent.server;
+
+import ml.dent.util.LatencyHistogram;
+import ml.dent.video.Destination;
+import ml.dent.video.QueueLevel;
+import ml.dent.video.Rendition;
+import ml.dent.video.StreamStats;
+import ml.dent.video.VideoServer;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formats the statistics of streams, as JSON for the STATS command and as plain text for the
+ * scrape endpoint. Destination 0 is always the stream's own connection.
+ */
+class StatsReport {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private StatsReport() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static JSONObject toJson(int streamId, VideoServer videoServer) {
+        JSONObject res = new JSONObject();
+        res.put("stream", streamId);
+        if (videoServer == null) {
+            return res;
+        }
+        StreamStats stats = videoServer.getStats();
+        res.put("isStreaming", videoServer.streamStarted());
+        res.put("samples", stats.getSamples());
+        res.put("bytes", stats.getBytes());
+        res.put("samplesPerSecond", stats.getSamplesPerSecond());
+        res.put("bytesPerSecond", stats.getBytesPerSecond());
+        res.put("pipelineLatencyUs", toJson(stats.getPipelineLatency()));
+        res.put("sendLatencyUs", toJson(stats.getSendLatency()));
+
+        JSONArray destinations = new JSONArray();
+        for (Destination destination : videoServer.getDestinations()) {
+            JSONObject destinationStats = new JSONObject();
+            destinationStats.put("isConnected", destination.getClient().isConnectionActive());
+            destinationStats.put("droppedFrames", destination.getDroppedFrames());
+            destinationStats.put("droppedBytes", destination.getDroppedBytes());
+            destinationStats.put("queuedFrames", destination.getQueuedFrames());
+            destinationStats.put("pendingWriteBytes", destination.getPendingWriteBytes());
+            destinationStats.put("reconnects", destination.getClient().getReconnectCount());
+            destinations.add(destinationStats);
+        }
+        res.put("destinations", destinations);
+
+        // Measured from when a sample was pulled rather than its presentation time, so kept apart
+        JSONArray renditions = new JSONArray();
+        for (Rendition rendition : videoServer.getRenditions()) {
+            JSONObject renditionStats = new JSONObject();
+            renditionStats.put("sendLatencyUs", toJson(rendition.getSendLatency()));
+            renditions.add(renditionStats);
+        }
+        res.put("renditions", renditions);
+
+        JSONArray queues = new JSONArray();
+        for (QueueLevel level : videoServer.getQueueLevels()) {
+            JSONObject queueStats = new JSONObject();
+            queueStats.put("name", level.getName());
+            queueStats.put("buffers", level.getBuffers());
+            queueStats.put("bytes", level.getBytes());
+            queueStats.put("timeMs", TimeUnit.NANOSECONDS.toMillis(level.getTimeNanos()));
+            queues.add(queueStats);
+        }
+        res.put("queues", queues);
+        return res;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JSONObject toJson(LatencyHistogram histogram) {
+        JSONObject res = new JSONObject();
+        res.put("count", histogram.getCount());
+        res.put("mean", histogram.getMeanMicros());
+        res.put("p50", histogram.getQuantileMicros(0.5));
+        res.put("p90", histogram.getQuantileMicros(0.9));
+        res.put("p99", histogram.getQuantileMicros(0.99));
+        res.put("max", histogram.getMaxMicros());
+        return res;
+    }
+
+    /**
+     * @return The statistics of every stream, one "name{labels} value" line per value
+     */
+    static String toText(Map<Integer, VideoServer> streams) {
+        StringBuilder res = new StringBuilder();
+        for (Map.Entry<Integer, VideoServer> entry : streams.entrySet()) {
+            String stream = "stream=\"" + entry.getKey() + "\"";
+            VideoServer videoServer = entry.getValue();
+            StreamStats stats = videoServer.getStats();
+            line(res, "video_streaming", stream, videoServer.streamStarted() ? 1 : 0);
+            line(res, "video_samples_total", stream, stats.getSamples());
+            line(res, "video_bytes_total", stream, stats.getBytes());
+            line(res, "video_samples_per_second", stream, stats.getSamplesPerSecond());
+            line(res, "video_bytes_per_second", stream, stats.getBytesPerSecond());
+            latency(res, "video_pipeline_latency_seconds", stream, stats.getPipelineLatency());
+            latency(res, "video_send_latency_seconds", stream, stats.getSendLatency());
+
+            List<Destination> destinations = videoServer.getDestinations();
+            for (int i = 0; i < destinations.size(); i++) {
+                Destination destination = destinations.get(i);
+                String labels = stream + ",destination=\"" + i + "\"";
+                line(res, "video_connected", labels, destination.getClient().isConnectionActive() ? 1 : 0);
+                line(res, "video_dropped_samples_total", labels, destination.getDroppedFrames());
+                line(res, "video_dropped_bytes_total", labels, destination.getDroppedBytes());
+                line(res, "video_queued_samples", labels, destination.getQueuedFrames());
+                line(res, "video_pending_write_bytes", labels, destination.getPendingWriteBytes());
+                line(res, "video_reconnects_total", labels, destination.getClient().getReconnectCount());
+            }
+
+            List<Rendition> renditions = videoServer.getRenditions();
+            for (int i = 0; i < renditions.size(); i++) {
+                String labels = stream + ",rendition=\"" + i + "\"";
+                latency(res, "video_rendition_send_latency_seconds", labels, renditions.get(i).getSendLatency());
+            }
+
+            for (QueueLevel level : videoServer.getQueueLevels()) {
+                String labels = stream + ",queue=\"" + level.getName() + "\"";
+                line(res, "video_queue_buffers", labels, level.getBuffers());
+                line(res, "video_queue_bytes", labels, level.getBytes());
+                line(res, "video_queue_seconds", labels, level.getTimeNanos() / 1e9);
+            }
+        }
+        return res.toString();
+    }
+
+    private static void latency(StringBuilder res, String name, String labels, LatencyHistogram histogram) {
+        for (double quantile : QUANTILES) {
+            line(res, name, labels + ",quantile=\"" + quantile + "\"", histogram.getQuantileMicros(quantile) / 1e6);
+        }
+        line(res, name + "_max", labels, histogram.getMaxMicros() / 1e6);
+        line(res, name + "_count", labels, histogram.getCount());
+    }
+
+    private static void line(StringBuilder res, String name, String labels, long value) {
+        res.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+
+    private static void line(StringBuilder res, String name, String labels, double value) {
+        res.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+}
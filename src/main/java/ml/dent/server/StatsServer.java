@@ -0,0 +1,73 @@
+package ml.dent.server;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.*;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.*;
+import ml.dent.net.TransportContext;
+
+/**
+ * Serves the statistics of every stream of a {@link ControlServer} as plain text over HTTP, for
+ * monitoring tools to scrape. Only listens on the loopback interface.
+ */
+public class StatsServer {
+
+    private final int              port;
+    private final ControlServer    controlServer;
+    private final TransportContext transport;
+
+    public StatsServer(int port, ControlServer controlServer, TransportContext transport) {
+        this.port = port;
+        this.controlServer = controlServer;
+        this.transport = transport;
+    }
+
+    /**
+     * @return A ChannelFuture that is notified when this server is closed
+     * @throws InterruptedException If this thread is interrupted while the server is trying to bind
+     */
+    public ChannelFuture start() throws InterruptedException {
+        ServerBootstrap boot = new ServerBootstrap();
+        boot.group(transport.group()).channel(transport.serverSocketChannelClass())
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new HttpServerCodec(), new HttpObjectAggregator(4096), new ScrapeHandler());
+                    }
+                });
+
+        ChannelFuture future = boot.bind("127.0.0.1", port).sync();
+        return future.channel().closeFuture();
+    }
+
+    class ScrapeHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+            FullHttpResponse response;
+            if (request.method() != HttpMethod.GET) {
+                response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.METHOD_NOT_ALLOWED);
+            } else {
+                String text = StatsReport.toText(controlServer.getStreams());
+                ByteBuf content = ctx.alloc().ioBuffer(ByteBufUtil.utf8MaxBytes(text));
+                ByteBufUtil.writeUtf8(content, text);
+                response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, content);
+                response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; version=0.0.4; charset=utf-8");
+            }
+            HttpUtil.setContentLength(response, response.content().readableBytes());
+            boolean keepAlive = HttpUtil.isKeepAlive(request);
+            HttpUtil.setKeepAlive(response, keepAlive);
+            ChannelFuture written = ctx.writeAndFlush(response);
+            if (!keepAlive) {
+                written.addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            cause.printStackTrace();
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package ml.dent.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies with power of two buckets of microseconds, from under 1us up to about
+ * 35 minutes. Recording never allocates or locks, so it can be done on the hot path of any thread,
+ * and quantiles are only estimated to within a bucket.
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 32;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong      total  = new AtomicLong();
+    private final AtomicLong      sum    = new AtomicLong();
+    private final AtomicLong      max    = new AtomicLong();
+
+    /**
+     * Records a latency, negative ones are counted as 0
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        counts.incrementAndGet(bucket);
+        total.incrementAndGet();
+        sum.addAndGet(micros);
+        long curMax;
+        while (micros > (curMax = max.get())) {
+            if (max.compareAndSet(curMax, micros)) {
+                break;
+            }
+        }
+    }
+
+    public long getCount() {
+        return total.get();
+    }
+
+    /**
+     * @return The mean latency in microseconds, or 0 if nothing was recorded
+     */
+    public long getMeanMicros() {
+        long count = total.get();
+        return count == 0 ? 0 : sum.get() / count;
+    }
+
+    public long getMaxMicros() {
+        return max.get();
+    }
+
+    /**
+     * @param quantile Between 0 and 1, for example 0.99 for the 99th percentile
+     * @return The upper bound in microseconds of the bucket the quantile falls in, or 0 if nothing
+     * was recorded
+     */
+    public long getQuantileMicros(double quantile) {
+        long count = total.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(i == 0 ? 0 : 1L << i, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        total.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+}
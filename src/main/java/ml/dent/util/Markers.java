@@ -12,4 +12,8 @@ public class Markers {
 	public static final byte	START_VIDEO		= (byte) 0x4b;
 	public static final byte	STOP_VIDEO		= (byte) 0xa7;
 	public static final byte	CONFIG			= (byte) 0xfb;
+	public static final byte	SELECT_STREAM	= (byte) 0x53;
+	public static final byte	UPDATE			= (byte) 0xfc;
+	public static final byte	STATS_REQUEST	= (byte) 0x7d;
+	public static final byte	STATS_RESPONSE	= (byte) 0x7c;
 }
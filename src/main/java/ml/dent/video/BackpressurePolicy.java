@@ -0,0 +1,21 @@
+package ml.dent.video;
+
+/**
+ * What a video stream does with new samples when its outbound queue is full because the channel
+ * has stopped being writable
+ */
+public enum BackpressurePolicy {
+    /**
+     * Stall the streaming thread until there is room, which pushes the backpressure up the pipeline
+     */
+    BLOCK,
+    /**
+     * Drop the sample and everything after it until the next keyframe, so the viewer never receives
+     * a partial group of pictures
+     */
+    DROP_TO_KEYFRAME,
+    /**
+     * Keep the newest samples and discard the oldest queued ones
+     */
+    DROP_OLDEST
+}
@@ -0,0 +1,126 @@
+package ml.dent.video;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The format a camera is asked to capture in. Anything left unset is up to the camera. Knowing the
+ * format lets the pipeline leave out the decoder and the colorspace conversion when the camera
+ * already captures something the encoder takes.
+ */
+public class CaptureSettings {
+
+    /**
+     * Asks the camera for motion JPEG instead of raw video
+     */
+    public static final String MJPEG = "MJPEG";
+
+    /**
+     * The raw formats x264enc encodes without a conversion. These are the 4:2:0 formats only, x264enc
+     * takes 4:2:2 and 4:4:4 as well but encodes them in High 4:2:2 or High 4:4:4 profiles most
+     * viewers cannot decode, so those still go through a conversion.
+     */
+    public static final List<String> ENCODER_FORMATS = Arrays.asList("I420", "YV12", "NV12", "NV21");
+
+    public static final int MAX_DIMENSION = 8192;
+    public static final int MAX_FRAMERATE = 240;
+
+    private Integer width;
+    private Integer height;
+    private Integer framerate;
+    private String  format;
+
+    public Integer getWidth() {
+        return width;
+    }
+
+    public void setWidth(Integer width) {
+        this.width = width;
+    }
+
+    public Integer getHeight() {
+        return height;
+    }
+
+    public void setHeight(Integer height) {
+        this.height = height;
+    }
+
+    public Integer getFramerate() {
+        return framerate;
+    }
+
+    /**
+     * @param framerate In frames per second
+     */
+    public void setFramerate(Integer framerate) {
+        this.framerate = framerate;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * @param format A raw video format as GStreamer names it, such as "I420" or "YUY2", or
+     *               {@link #MJPEG}
+     */
+    public void setFormat(String format) {
+        this.format = format;
+    }
+
+    public boolean isSet() {
+        return width != null || height != null || framerate != null || format != null;
+    }
+
+    /**
+     * @return Whether the camera is asked for raw video, so nothing has to be decoded
+     */
+    public boolean isRaw() {
+        return format != null && !format.equals(MJPEG);
+    }
+
+    /**
+     * @return Whether the camera is asked for raw video the encoder takes as it is
+     */
+    public boolean isEncoderFormat() {
+        return format != null && ENCODER_FORMATS.contains(format);
+    }
+
+    /**
+     * @param encoded Whether the camera is expected to capture H.264 itself, in which case the
+     *                format is ignored
+     * @return A capsfilter element for a pipeline description, or null if nothing is set
+     */
+    public String toPipeline(boolean encoded) {
+        if (!isSet()) {
+            return null;
+        }
+        String caps;
+        if (encoded) {
+            caps = "video/x-h264" + dimensions();
+        } else if (format == null) {
+            // Either is fine, the decoder works out which one it got
+            caps = "video/x-raw" + dimensions() + ";image/jpeg" + dimensions();
+        } else if (format.equals(MJPEG)) {
+            caps = "image/jpeg" + dimensions();
+        } else {
+            caps = "video/x-raw,format=" + format + dimensions();
+        }
+        return "capsfilter caps=\"" + caps + "\"";
+    }
+
+    private String dimensions() {
+        StringBuilder res = new StringBuilder();
+        if (width != null) {
+            res.append(",width=").append(width);
+        }
+        if (height != null) {
+            res.append(",height=").append(height);
+        }
+        if (framerate != null) {
+            res.append(",framerate=").append(framerate).append("/1");
+        }
+        return res.toString();
+    }
+}
@@ -0,0 +1,33 @@
+package ml.dent.video;
+
+/**
+ * One of the sources a composite stream tiles into its picture. Takes the same sources as a
+ * stream of its own, each is decoded and scaled down to a tile.
+ */
+public class CompositeInput {
+
+    private final VideoServer.Camera cameraType;
+    private final String             source;
+
+    /**
+     * @param cameraType Any camera type except {@link VideoServer.Camera#COMPOSITE}
+     * @param source     What the camera type takes as its source, as set by the matching setter of
+     *                   {@link VideoServer}: the device, the URI, "host:port", the test pattern or
+     *                   the file path. Null for {@link VideoServer.Camera#DEFAULT}.
+     */
+    public CompositeInput(VideoServer.Camera cameraType, String source) {
+        if (cameraType == VideoServer.Camera.COMPOSITE) {
+            throw new IllegalArgumentException("Composite streams cannot be nested");
+        }
+        this.cameraType = cameraType;
+        this.source = source;
+    }
+
+    public VideoServer.Camera getCameraType() {
+        return cameraType;
+    }
+
+    public String getSource() {
+        return source;
+    }
+}
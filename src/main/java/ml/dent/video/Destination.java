@@ -0,0 +1,193 @@
+package ml.dent.video;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import ml.dent.net.OutboundQueue;
+import ml.dent.net.SimpleNetworkClient;
+import ml.dent.util.LatencyHistogram;
+
+import java.util.Arrays;
+
+/**
+ * One outbound connection that the encoded output of a {@link VideoServer} is sent to. Every
+ * destination has its own queue, {@link BackpressurePolicy} and {@link GapPolicy}, so a slow or
+ * reconnecting destination only ever drops its own samples and never holds up the others, unless it
+ * is set to {@link BackpressurePolicy#BLOCK}, which stalls the shared pipeline on purpose.
+ */
+public class Destination {
+
+    private final SimpleNetworkClient client;
+    private final OutboundQueue       outbound;
+    private final SampleSender        sender;
+
+    private volatile GapPolicy gapPolicy = GapPolicy.DISCARD;
+
+    // Identifies the connection the cached GOP was last sent on, only touched by the streaming thread
+    private ChannelFuture primedConnection;
+
+    /**
+     * Creates a destination with its own connection to a bounce server. It reconnects on its own if
+     * the connection is lost.
+     *
+     * @param channel The bounce server channel the stream is sent on
+     */
+    public Destination(String host, int port, int channel) {
+        client = new DestinationClient(host, port, channel);
+        outbound = new OutboundQueue(client);
+        sender = new SampleSender(client, outbound, BackpressurePolicy.DROP_TO_KEYFRAME);
+        client.setAutoReconnect(true);
+    }
+
+    // The video server's own connection, which adds the queue's writability handler itself
+    Destination(SimpleNetworkClient client, OutboundQueue outbound) {
+        this.client = client;
+        this.outbound = outbound;
+        sender = new SampleSender(client, outbound, BackpressurePolicy.DROP_TO_KEYFRAME);
+    }
+
+    /**
+     * @return The client this destination sends through, used to configure the connection before it
+     * is opened
+     */
+    public SimpleNetworkClient getClient() {
+        return client;
+    }
+
+    public ChannelFuture connect() {
+        return client.connect();
+    }
+
+    /**
+     * Sets what happens to new samples when this destination cannot keep up with the stream
+     */
+    public void setBackpressurePolicy(BackpressurePolicy policy) {
+        sender.setPolicy(policy);
+    }
+
+    public BackpressurePolicy getBackpressurePolicy() {
+        return sender.getPolicy();
+    }
+
+    /**
+     * Sets what happens to the samples produced while a lost connection is being reestablished
+     */
+    public void setGapPolicy(GapPolicy policy) {
+        gapPolicy = policy;
+        outbound.setHoldWhileReconnecting(policy == GapPolicy.BUFFER);
+    }
+
+    public GapPolicy getGapPolicy() {
+        return gapPolicy;
+    }
+
+    /**
+     * @return The number of bytes of encoded video that were never sent to this destination
+     */
+    public long getDroppedBytes() {
+        return outbound.getDroppedBytes();
+    }
+
+    /**
+     * @return The number of samples that were never sent to this destination
+     */
+    public long getDroppedFrames() {
+        return outbound.getDroppedBuffers();
+    }
+
+    /**
+     * @return The number of samples waiting to be written to this destination
+     */
+    public int getQueuedFrames() {
+        return outbound.size();
+    }
+
+    /**
+     * @return The number of bytes written to this destination's channel that have not made it to the
+     * socket yet
+     */
+    public long getPendingWriteBytes() {
+        return outbound.getPendingWriteBytes();
+    }
+
+    void setWriteLatencyHistogram(LatencyHistogram histogram) {
+        outbound.setWriteLatencyHistogram(histogram);
+    }
+
+    /**
+     * Decides whether a sample of the given size should be sent to this destination at all, counting
+     * it as dropped if it is produced while the connection is down and the gap is discarded. Must be
+     * called from the streaming thread.
+     */
+    boolean accepts(int size) {
+        if (client.isConnectionActive()) {
+            return true;
+        }
+        if (!client.isReconnecting()) {
+            return false;
+        }
+        if (gapPolicy == GapPolicy.DISCARD) {
+            outbound.countDropped(size);
+            sender.skipToKeyframe();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Queues a sample that was accepted by {@link #accepts(int)}. Takes ownership of the buffer. The
+     * first sample on a new connection is replaced by the cached GOP, which already ends with it.
+     *
+     * @param cache     The GOP cache of the stream, or null if it has none
+     * @param timestamp The {@link System#nanoTime()} the sample's latency is measured from
+     */
+    void send(ByteBuf sample, GopCache cache, long timestamp) {
+        if (!client.isConnectionActive()) {
+            outbound.offerDroppingOldest(sample, timestamp);
+            return;
+        }
+        ChannelFuture connection = client.closeFuture();
+        if (cache != null && connection != primedConnection) {
+            primedConnection = connection;
+            // Anything held through a gap already leads up to this sample
+            if (outbound.isEmpty()) {
+                ByteBuf cached = cache.snapshot(client.getAllocator());
+                if (cached != null) {
+                    sample.release();
+                    sender.resumeAtKeyframe();
+                    sender.send(cached, timestamp);
+                    return;
+                }
+                // The GOP outgrew the cache, so the new connection has to wait for the next keyframe.
+                // Before any keyframe was seen there may never be one to wait for.
+                if (cache.hasSeenKeyframe()) {
+                    sender.skipToKeyframe();
+                }
+            }
+        }
+        sender.send(sample, timestamp);
+    }
+
+    void open() {
+        sender.open();
+    }
+
+    void close() {
+        sender.close();
+    }
+
+    private class DestinationClient extends SimpleNetworkClient {
+
+        DestinationClient(String host, int port, int channel) {
+            super(host, port, channel, true);
+        }
+
+        // Reconnects go through here as well, so every connection gets a fresh handler
+        @Override
+        public ChannelFuture connect(ChannelHandler... channelHandlers) {
+            ChannelHandler[] handlers = Arrays.copyOf(channelHandlers, channelHandlers.length + 1);
+            handlers[channelHandlers.length] = outbound.newWritabilityHandler();
+            return super.connect(handlers);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package ml.dent.video;
+
+/**
+ * The x264enc properties of a stream that encodes its video. Anything left unset keeps the
+ * encoder's default. The encoder is always tuned for zero latency.
+ */
+public class EncoderSettings {
+
+    /**
+     * The output every encoder is held to. Keyframes and parameter sets are only found in an Annex-B
+     * byte-stream, where every sample is a whole access unit.
+     */
+    public static final String OUTPUT_CAPS = "video/x-h264,stream-format=byte-stream,alignment=au";
+
+    public static final String[] SPEED_PRESETS = {
+            "ultrafast", "superfast", "veryfast", "faster", "fast", "medium", "slow", "slower", "veryslow", "placebo"
+    };
+
+    public static final String[] RATE_CONTROLS = {"cbr", "quant", "qual", "pass1", "pass2", "pass3"};
+
+    public static final int MAX_BITRATE = 2048000;
+
+    // In kbit/s
+    private Integer bitrate;
+    private String  speedPreset;
+    private Integer keyIntMax;
+    private Integer threads;
+    private Boolean slicedThreads;
+    private String  rateControl;
+
+    public Integer getBitrate() {
+        return bitrate;
+    }
+
+    /**
+     * @param bitrate The target bitrate in kbit/s
+     */
+    public void setBitrate(Integer bitrate) {
+        this.bitrate = bitrate;
+    }
+
+    public String getSpeedPreset() {
+        return speedPreset;
+    }
+
+    /**
+     * @param speedPreset One of {@link #SPEED_PRESETS}
+     */
+    public void setSpeedPreset(String speedPreset) {
+        this.speedPreset = speedPreset;
+    }
+
+    public Integer getKeyIntMax() {
+        return keyIntMax;
+    }
+
+    /**
+     * @param keyIntMax The most frames between two keyframes, or 0 to let the encoder decide
+     */
+    public void setKeyIntMax(Integer keyIntMax) {
+        this.keyIntMax = keyIntMax;
+    }
+
+    public Integer getThreads() {
+        return threads;
+    }
+
+    /**
+     * @param threads The number of encoding threads, or 0 for one per core
+     */
+    public void setThreads(Integer threads) {
+        this.threads = threads;
+    }
+
+    public Boolean getSlicedThreads() {
+        return slicedThreads;
+    }
+
+    /**
+     * Sliced threads split every frame between the threads instead of working on several frames at
+     * once, which lowers latency by a few frames at some cost in efficiency
+     */
+    public void setSlicedThreads(Boolean slicedThreads) {
+        this.slicedThreads = slicedThreads;
+    }
+
+    public String getRateControl() {
+        return rateControl;
+    }
+
+    /**
+     * @param rateControl One of {@link #RATE_CONTROLS}, as taken by the x264enc "pass" property
+     */
+    public void setRateControl(String rateControl) {
+        this.rateControl = rateControl;
+    }
+
+    public boolean isSet() {
+        return bitrate != null || speedPreset != null || keyIntMax != null || threads != null || slicedThreads != null
+                || rateControl != null;
+    }
+
+    /**
+     * Copies every setting that is set in the other settings into these
+     */
+    public void merge(EncoderSettings other) {
+        if (other.bitrate != null) {
+            bitrate = other.bitrate;
+        }
+        if (other.speedPreset != null) {
+            speedPreset = other.speedPreset;
+        }
+        if (other.keyIntMax != null) {
+            keyIntMax = other.keyIntMax;
+        }
+        if (other.threads != null) {
+            threads = other.threads;
+        }
+        if (other.slicedThreads != null) {
+            slicedThreads = other.slicedThreads;
+        }
+        if (other.rateControl != null) {
+            rateControl = other.rateControl;
+        }
+    }
+
+    /**
+     * @return The encoder element and the caps its output is held to for a pipeline description, the
+     * encoder named "encoder"
+     */
+    public String toPipeline() {
+        return toPipeline("encoder");
+    }
+
+    /**
+     * @return The encoder element with the given name and the caps its output is held to for a
+     * pipeline description
+     */
+    public String toPipeline(String name) {
+        StringBuilder res = new StringBuilder("x264enc name=").append(name).append(" tune=\"zerolatency\"");
+        if (bitrate != null) {
+            res.append(" bitrate=").append(bitrate);
+        }
+        if (speedPreset != null) {
+            res.append(" speed-preset=").append(speedPreset);
+        }
+        if (keyIntMax != null) {
+            res.append(" key-int-max=").append(keyIntMax);
+        }
+        if (threads != null) {
+            res.append(" threads=").append(threads);
+        }
+        if (slicedThreads != null) {
+            res.append(" sliced-threads=").append(slicedThreads);
+        }
+        if (rateControl != null) {
+            res.append(" pass=").append(rateControl);
+        }
+        // Without it x264enc may negotiate avc, where the parameter sets only live in the caps
+        res.append(" ! capsfilter caps=\"").append(OUTPUT_CAPS).append('"');
+        return res.toString();
+    }
+}
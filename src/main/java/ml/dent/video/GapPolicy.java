@@ -0,0 +1,15 @@
+package ml.dent.video;
+
+/**
+ * What a video stream does with the samples produced while its connection is being reestablished
+ */
+public enum GapPolicy {
+    /**
+     * Drop them, and resume sending at the first keyframe after the reconnect
+     */
+    DISCARD,
+    /**
+     * Keep the most recent ones in the outbound queue and send them once the connection is back
+     */
+    BUFFER
+}
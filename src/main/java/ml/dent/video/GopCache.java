@@ -0,0 +1,119 @@
+package ml.dent.video;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the samples of the most recent group of pictures, from its keyframe up to the latest
+ * sample, along with the last sample that carried the stream headers. A connection that joins the
+ * stream is sent these first, so it can decode a picture right away instead of waiting for the
+ * encoder's next keyframe. The cache holds its own reference to every sample, and is bounded in
+ * bytes: a GOP that grows past the limit is dropped until the next keyframe starts a new one.
+ */
+class GopCache {
+
+    public static final int DEFAULT_MAX_BYTES = 4 << 20;
+
+    private final List<ByteBuf> gop = new ArrayList<>();
+
+    private volatile int maxBytes = DEFAULT_MAX_BYTES;
+
+    private ByteBuf headers;
+    private boolean gopHasHeaders;
+    private int     gopBytes;
+    // Set while the current GOP is too big to cache
+    private boolean overflowed = true;
+    // Whether a keyframe was found since the cache was last cleared
+    private boolean seenKeyframe;
+
+    void setMaxBytes(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    int getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Adds a sample produced by the pipeline. Does not take ownership of the buffer.
+     */
+    synchronized void add(ByteBuf sample) {
+        boolean hasHeaders = VideoUtils.hasStreamHeaders(sample);
+        if (VideoUtils.isKeyframe(sample)) {
+            releaseGop();
+            overflowed = false;
+            seenKeyframe = true;
+            gopHasHeaders = hasHeaders;
+        }
+        if (hasHeaders) {
+            if (headers != null) {
+                headers.release();
+            }
+            headers = sample.retainedDuplicate();
+        }
+        if (overflowed) {
+            return;
+        }
+        gopBytes += sample.readableBytes();
+        if (gopBytes > maxBytes) {
+            releaseGop();
+            overflowed = true;
+            return;
+        }
+        gop.add(sample.retainedDuplicate());
+    }
+
+    /**
+     * Joins the cached samples into one buffer without copying them, starting with the stream
+     * headers if the GOP does not begin with them. A single buffer takes up a single slot in an
+     * outbound queue however long the GOP is.
+     *
+     * @return A new buffer the caller must release, or null if no complete GOP is cached
+     */
+    synchronized ByteBuf snapshot(ByteBufAllocator alloc) {
+        if (overflowed || gop.isEmpty()) {
+            return null;
+        }
+        CompositeByteBuf samples = alloc.compositeDirectBuffer(gop.size() + 1);
+        if (!gopHasHeaders && headers != null) {
+            samples.addComponent(true, headers.retainedDuplicate());
+        }
+        for (ByteBuf sample : gop) {
+            samples.addComponent(true, sample.retainedDuplicate());
+        }
+        return samples;
+    }
+
+    /**
+     * @return Whether a keyframe has been added since the cache was created or last cleared. Until
+     * then keyframes cannot be told apart in the stream, so nobody should wait for one.
+     */
+    synchronized boolean hasSeenKeyframe() {
+        return seenKeyframe;
+    }
+
+    /**
+     * Releases everything cached. The next GOP starts being cached at the next keyframe.
+     */
+    synchronized void clear() {
+        releaseGop();
+        overflowed = true;
+        seenKeyframe = false;
+        if (headers != null) {
+            headers.release();
+            headers = null;
+        }
+    }
+
+    private void releaseGop() {
+        for (ByteBuf sample : gop) {
+            sample.release();
+        }
+        gop.clear();
+        gopBytes = 0;
+    }
+}
@@ -0,0 +1,133 @@
+package ml.dent.video;
+
+import org.freedesktop.gstreamer.Bin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the launch description of a pipeline, one element after the other. The pipeline is a
+ * single chain unless branches are started, which can feed named elements of the chains before
+ * them. Queues are added by the stage they belong to and only turned into elements once the whole
+ * pipeline is known, so that a latency budget can be shared out between however many queues it
+ * ends up with.
+ */
+class PipelineDescription {
+
+    private final List<String>        elements = new ArrayList<>();
+    // The stage of every queue, by its position in elements
+    private final List<PipelineStage> stages   = new ArrayList<>();
+    private final List<String>        queues   = new ArrayList<>();
+    // The number of queues in every chain, the main chain first
+    private final List<Integer>       chains   = new ArrayList<>(Collections.singletonList(0));
+    // Positions in elements that start a branch instead of being linked to the element before
+    private final List<Integer>       branches = new ArrayList<>();
+    // The properties of every named element that are set once the pipeline is built
+    private final Map<String, Map<String, Object>> properties = new LinkedHashMap<>();
+
+    /**
+     * Adds an element, with any properties, after the last one
+     */
+    PipelineDescription add(String element) {
+        elements.add(element);
+        stages.add(null);
+        return this;
+    }
+
+    /**
+     * Adds a queue of the given stage after the last element
+     */
+    PipelineDescription queue(PipelineStage stage) {
+        String name = stage.name().toLowerCase() + "_queue" + queues.size();
+        elements.add("queue name=" + name);
+        stages.add(stage);
+        queues.add(name);
+        int chain = chains.size() - 1;
+        chains.set(chain, chains.get(chain) + 1);
+        return this;
+    }
+
+    /**
+     * Starts a new chain of elements that is not linked to the last element. A branch usually ends
+     * in a pad of an element added earlier, such as "mix.sink_0".
+     */
+    PipelineDescription branch() {
+        branches.add(elements.size());
+        chains.add(0);
+        return this;
+    }
+
+    /**
+     * Sets a property of a named element once the pipeline is built instead of in its description.
+     * Meant for values from a config, such as file paths, which could end the description's quoting
+     * and add elements of their own.
+     */
+    PipelineDescription set(String element, String property, Object value) {
+        properties.computeIfAbsent(element, key -> new LinkedHashMap<>()).put(property, value);
+        return this;
+    }
+
+    /**
+     * Sets the properties given to {@link #set(String, String, Object)} on a pipeline built from
+     * this description
+     */
+    void applyProperties(Bin pipeline) {
+        for (Map.Entry<String, Map<String, Object>> element : properties.entrySet()) {
+            for (Map.Entry<String, Object> property : element.getValue().entrySet()) {
+                pipeline.getElementByName(element.getKey()).set(property.getKey(), property.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return The names of the queue elements, in the order they were added
+     */
+    List<String> getQueueNames() {
+        return Collections.unmodifiableList(queues);
+    }
+
+    PipelineStage getStage(String queueName) {
+        return stages.get(elements.indexOf("queue name=" + queueName));
+    }
+
+    /**
+     * @param settings        The queue settings of each stage, stages that are missing keep the
+     *                        queue defaults
+     * @param latencyBudgetMs The most latency the queues a sample passes through may add together,
+     *                        shared out evenly between them, or -1 for no budget
+     */
+    String build(Map<PipelineStage, QueueSettings> settings, long latencyBudgetMs) {
+        // Branches run side by side, so a sample only passes through the queues of one of them
+        int longestBranch = 0;
+        for (int i = 1; i < chains.size(); i++) {
+            longestBranch = Math.max(longestBranch, chains.get(i));
+        }
+        int path = chains.get(0) + longestBranch;
+        long share = -1;
+        if (latencyBudgetMs >= 0 && path > 0) {
+            // A queue time limit of 0 would mean no limit at all
+            share = Math.max(1, latencyBudgetMs / path);
+        }
+        StringBuilder res = new StringBuilder();
+        for (int i = 0; i < elements.size(); i++) {
+            if (branches.contains(i)) {
+                res.append("  ");
+            } else if (i > 0) {
+                res.append(" ! ");
+            }
+            res.append(elements.get(i));
+            PipelineStage stage = stages.get(i);
+            if (stage != null) {
+                QueueSettings stageSettings = settings.get(stage);
+                if (stageSettings == null) {
+                    stageSettings = new QueueSettings();
+                }
+                res.append(stageSettings.toProperties(share, stage));
+            }
+        }
+        return res.toString();
+    }
+}
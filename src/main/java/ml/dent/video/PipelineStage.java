@@ -0,0 +1,32 @@
+package ml.dent.video;
+
+/**
+ * The points in a video pipeline where a queue separates one part of the work from the next, each
+ * queue is given the settings of its stage
+ */
+public enum PipelineStage {
+    /**
+     * Right after the source, before anything is parsed or decoded
+     */
+    SOURCE,
+    /**
+     * Decoded raw frames, before they are converted for the encoder
+     */
+    DECODE,
+    /**
+     * Converted raw frames, before they are encoded
+     */
+    ENCODE,
+    /**
+     * Encoded video, before it is muxed or handed to the application
+     */
+    OUTPUT;
+
+    /**
+     * @return Whether the queues of this stage can hold encoded video, which cannot lose a buffer
+     * without corrupting the picture until the next keyframe. Sources often produce MJPEG or H.264.
+     */
+    public boolean mayBeEncoded() {
+        return this == SOURCE || this == OUTPUT;
+    }
+}
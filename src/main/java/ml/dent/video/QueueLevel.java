@@ -0,0 +1,47 @@
+package ml.dent.video;
+
+/**
+ * How full one queue of a running pipeline was when it was read
+ */
+public class QueueLevel {
+
+    private final String        name;
+    private final PipelineStage stage;
+    private final long          buffers;
+    private final long          bytes;
+    private final long          timeNanos;
+
+    QueueLevel(String name, PipelineStage stage, long buffers, long bytes, long timeNanos) {
+        this.name = name;
+        this.stage = stage;
+        this.buffers = buffers;
+        this.bytes = bytes;
+        this.timeNanos = timeNanos;
+    }
+
+    /**
+     * @return The name of the queue element in the pipeline
+     */
+    public String getName() {
+        return name;
+    }
+
+    public PipelineStage getStage() {
+        return stage;
+    }
+
+    public long getBuffers() {
+        return buffers;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return The duration of video held in the queue, which is how much latency it adds
+     */
+    public long getTimeNanos() {
+        return timeNanos;
+    }
+}
@@ -0,0 +1,83 @@
+package ml.dent.video;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The limits of the queues of one {@link PipelineStage}. Anything left unset keeps the queue's
+ * default, which allows up to a second of buffering. A queue that reaches any of its limits is
+ * full, and then either blocks the stage before it or, if leaky, drops buffers.
+ */
+public class QueueSettings {
+
+    public static final String[] LEAKY_MODES = {"no", "upstream", "downstream"};
+
+    private Integer maxBuffers;
+    private Long    maxBytes;
+    private Long    maxTimeMs;
+    private String  leaky;
+
+    public Integer getMaxBuffers() {
+        return maxBuffers;
+    }
+
+    public void setMaxBuffers(Integer maxBuffers) {
+        this.maxBuffers = maxBuffers;
+    }
+
+    public Long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public void setMaxBytes(Long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public Long getMaxTimeMs() {
+        return maxTimeMs;
+    }
+
+    public void setMaxTimeMs(Long maxTimeMs) {
+        this.maxTimeMs = maxTimeMs;
+    }
+
+    public String getLeaky() {
+        return leaky;
+    }
+
+    /**
+     * @param leaky One of {@link #LEAKY_MODES}. Upstream drops the new buffers when the queue is
+     *              full, downstream drops the oldest ones.
+     */
+    public void setLeaky(String leaky) {
+        this.leaky = leaky;
+    }
+
+    /**
+     * @param budgetTimeMs The share of the stream's latency budget given to one queue, used when no
+     *                     time limit is set, or -1 if the stream has no budget
+     * @param stage        The stage the queue belongs to. Within a budget, queues of raw frames are
+     *                     leaky unless set otherwise, so that late frames are dropped instead of
+     *                     delaying everything after them.
+     * @return The properties of a queue element for a pipeline description
+     */
+    String toProperties(long budgetTimeMs, PipelineStage stage) {
+        StringBuilder res = new StringBuilder();
+        if (maxBuffers != null) {
+            res.append(" max-size-buffers=").append(maxBuffers);
+        }
+        if (maxBytes != null) {
+            res.append(" max-size-bytes=").append(maxBytes);
+        }
+        if (maxTimeMs != null) {
+            res.append(" max-size-time=").append(TimeUnit.MILLISECONDS.toNanos(maxTimeMs));
+        } else if (budgetTimeMs >= 0) {
+            res.append(" max-size-time=").append(TimeUnit.MILLISECONDS.toNanos(budgetTimeMs));
+        }
+        if (leaky != null) {
+            res.append(" leaky=").append(leaky);
+        } else if (budgetTimeMs >= 0 && !stage.mayBeEncoded()) {
+            res.append(" leaky=downstream");
+        }
+        return res.toString();
+    }
+}
@@ -0,0 +1,151 @@
+package ml.dent.video;
+
+/**
+ * The part of the picture a stream encodes and the size it is encoded at. The picture is cropped
+ * first and then scaled, right before the encoder. Anything left unset keeps the whole picture at
+ * its captured size, and both can be changed while the stream is running.
+ */
+public class RegionSettings {
+
+    public static final int MAX_DIMENSION = 8192;
+
+    // In pixels cut off each edge of the captured picture
+    private Integer cropLeft;
+    private Integer cropRight;
+    private Integer cropTop;
+    private Integer cropBottom;
+
+    // 0 keeps the size of the cropped picture
+    private Integer scaleWidth;
+    private Integer scaleHeight;
+
+    public Integer getCropLeft() {
+        return cropLeft;
+    }
+
+    public void setCropLeft(Integer cropLeft) {
+        this.cropLeft = cropLeft;
+    }
+
+    public Integer getCropRight() {
+        return cropRight;
+    }
+
+    public void setCropRight(Integer cropRight) {
+        this.cropRight = cropRight;
+    }
+
+    public Integer getCropTop() {
+        return cropTop;
+    }
+
+    public void setCropTop(Integer cropTop) {
+        this.cropTop = cropTop;
+    }
+
+    public Integer getCropBottom() {
+        return cropBottom;
+    }
+
+    public void setCropBottom(Integer cropBottom) {
+        this.cropBottom = cropBottom;
+    }
+
+    public Integer getScaleWidth() {
+        return scaleWidth;
+    }
+
+    /**
+     * @param scaleWidth The width the picture is encoded at, or 0 to keep the width of the cropped
+     *                   picture. If only one of width and height is set the other one keeps the
+     *                   aspect ratio.
+     */
+    public void setScaleWidth(Integer scaleWidth) {
+        this.scaleWidth = scaleWidth;
+    }
+
+    public Integer getScaleHeight() {
+        return scaleHeight;
+    }
+
+    /**
+     * @param scaleHeight The height the picture is encoded at, or 0 to keep the height of the
+     *                    cropped picture
+     */
+    public void setScaleHeight(Integer scaleHeight) {
+        this.scaleHeight = scaleHeight;
+    }
+
+    public boolean isSet() {
+        return cropLeft != null || cropRight != null || cropTop != null || cropBottom != null || scaleWidth != null
+                || scaleHeight != null;
+    }
+
+    /**
+     * Copies every setting that is set in the other settings into these
+     */
+    public void merge(RegionSettings other) {
+        if (other.cropLeft != null) {
+            cropLeft = other.cropLeft;
+        }
+        if (other.cropRight != null) {
+            cropRight = other.cropRight;
+        }
+        if (other.cropTop != null) {
+            cropTop = other.cropTop;
+        }
+        if (other.cropBottom != null) {
+            cropBottom = other.cropBottom;
+        }
+        if (other.scaleWidth != null) {
+            scaleWidth = other.scaleWidth;
+        }
+        if (other.scaleHeight != null) {
+            scaleHeight = other.scaleHeight;
+        }
+    }
+
+    /**
+     * @return The caps the scaled picture is held to
+     */
+    public String toScaleCaps() {
+        StringBuilder res = new StringBuilder("video/x-raw");
+        if (scaleWidth != null && scaleWidth > 0) {
+            res.append(",width=").append(scaleWidth);
+        }
+        if (scaleHeight != null && scaleHeight > 0) {
+            res.append(",height=").append(scaleHeight);
+        }
+        return res.toString();
+    }
+
+    /**
+     * @return The cropping element for a pipeline description, named "crop". It passes the picture
+     * through untouched while nothing is set, so it is always there to be changed later.
+     */
+    public String toCropPipeline() {
+        StringBuilder res = new StringBuilder("videocrop name=crop");
+        if (cropLeft != null) {
+            res.append(" left=").append(cropLeft);
+        }
+        if (cropRight != null) {
+            res.append(" right=").append(cropRight);
+        }
+        if (cropTop != null) {
+            res.append(" top=").append(cropTop);
+        }
+        if (cropBottom != null) {
+            res.append(" bottom=").append(cropBottom);
+        }
+        return res.toString();
+    }
+
+    /**
+     * @return The scaling element and the caps it is held to for a pipeline description, the caps
+     * named "scale_caps". Scaling is skipped while nothing is set, so it is always there to be
+     * changed later.
+     */
+    public String toScalePipeline() {
+        return "videoscale ! capsfilter name=scale_caps caps=\"" + toScaleCaps() + "\"";
+    }
+}
@@ -0,0 +1,93 @@
+package ml.dent.video;
+
+import ml.dent.util.LatencyHistogram;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An extra encoding of a stream at its own size and encoder settings, sent to a destination of its
+ * own, usually another channel of the same bounce server. Renditions share the capture, decoding,
+ * conversion and cropping of their stream and only branch off for scaling and encoding, so a low
+ * quality feed for poor links costs one more encode instead of a whole pipeline.
+ */
+public class Rendition {
+
+    private final Destination       destination;
+    // What samples are forwarded to, kept so forwarding does not allocate
+    private final List<Destination> targets;
+
+    private final EncoderSettings  encoderSettings = new EncoderSettings();
+    private final GopCache         gopCache        = new GopCache();
+    // From a sample being pulled from the rendition's appsink to it being written to the socket
+    private final LatencyHistogram sendLatency     = new LatencyHistogram();
+
+    // Null keeps the size of the cropped picture
+    private Integer width;
+    private Integer height;
+
+    public Rendition(Destination destination) {
+        this.destination = destination;
+        targets = Collections.singletonList(destination);
+        destination.setWriteLatencyHistogram(sendLatency);
+    }
+
+    public Destination getDestination() {
+        return destination;
+    }
+
+    List<Destination> getTargets() {
+        return targets;
+    }
+
+    /**
+     * @return The settings of this rendition's encoder, which start out as the encoder's defaults
+     * rather than the stream's settings
+     */
+    public EncoderSettings getEncoderSettings() {
+        return encoderSettings;
+    }
+
+    GopCache getGopCache() {
+        return gopCache;
+    }
+
+    /**
+     * @return The send latency of this rendition. Renditions have no presentation time to go by, so
+     * unlike the stream's own it is measured from when a sample was pulled from the pipeline.
+     */
+    public LatencyHistogram getSendLatency() {
+        return sendLatency;
+    }
+
+    /**
+     * Sets the size this rendition is encoded at. If only one of width and height is set the other
+     * one keeps the aspect ratio.
+     */
+    public void setSize(Integer width, Integer height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    public Integer getWidth() {
+        return width;
+    }
+
+    public Integer getHeight() {
+        return height;
+    }
+
+    /**
+     * @return The caps the scaled picture of this rendition is held to
+     */
+    String toScaleCaps() {
+        StringBuilder res = new StringBuilder("video/x-raw");
+        if (width != null) {
+            res.append(",width=").append(width);
+        }
+        if (height != null) {
+            res.append(",height=").append(height);
+        }
+        return res.toString();
+    }
+}
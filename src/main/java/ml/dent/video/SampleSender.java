@@ -0,0 +1,113 @@
+package ml.dent.video;
+
+import io.netty.buffer.ByteBuf;
+import ml.dent.net.AbstractNetworkClient;
+import ml.dent.net.OutboundQueue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Applies a {@link BackpressurePolicy} to the samples of a stream on their way into an
+ * {@link OutboundQueue}. Samples must all come from the same streaming thread.
+ */
+class SampleSender {
+
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final AbstractNetworkClient client;
+    private final OutboundQueue         queue;
+
+    private volatile BackpressurePolicy policy;
+    private volatile boolean            closed;
+
+    private boolean awaitingKeyframe;
+
+    SampleSender(AbstractNetworkClient client, OutboundQueue queue, BackpressurePolicy policy) {
+        this.client = client;
+        this.queue = queue;
+        this.policy = policy;
+    }
+
+    /**
+     * Queues a sample for writing, or drops it if the policy says so. Takes ownership of the buffer
+     * either way.
+     *
+     * @param timestamp The {@link System#nanoTime()} the sample's latency is measured from
+     */
+    void send(ByteBuf sample, long timestamp) {
+        switch (policy) {
+            case BLOCK:
+                if (awaitingKeyframe) {
+                    if (!VideoUtils.isKeyframe(sample)) {
+                        queue.drop(sample);
+                        return;
+                    }
+                    awaitingKeyframe = false;
+                }
+                while (!queue.offer(sample, timestamp)) {
+                    if (closed || !client.isConnectionActive()) {
+                        queue.drop(sample);
+                        return;
+                    }
+                    LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                }
+                return;
+            case DROP_OLDEST:
+                if (awaitingKeyframe) {
+                    if (!VideoUtils.isKeyframe(sample)) {
+                        queue.drop(sample);
+                        return;
+                    }
+                    awaitingKeyframe = false;
+                }
+                queue.offerDroppingOldest(sample, timestamp);
+                return;
+            default:
+                if (awaitingKeyframe && !VideoUtils.isKeyframe(sample)) {
+                    queue.drop(sample);
+                    return;
+                }
+                if (queue.offer(sample, timestamp)) {
+                    awaitingKeyframe = false;
+                } else {
+                    queue.drop(sample);
+                    awaitingKeyframe = true;
+                }
+        }
+    }
+
+    /**
+     * Drops every sample until the next keyframe, whatever the policy
+     */
+    void skipToKeyframe() {
+        awaitingKeyframe = true;
+    }
+
+    /**
+     * Stops skipping, because the samples that follow are known to start where a decoder can
+     */
+    void resumeAtKeyframe() {
+        awaitingKeyframe = false;
+    }
+
+    void setPolicy(BackpressurePolicy policy) {
+        this.policy = policy;
+    }
+
+    BackpressurePolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Releases a streaming thread that is blocked waiting for room in the queue
+     */
+    void close() {
+        closed = true;
+    }
+
+    void open() {
+        closed = false;
+        awaitingKeyframe = false;
+    }
+}
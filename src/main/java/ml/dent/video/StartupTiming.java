@@ -0,0 +1,75 @@
+package ml.dent.video;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records when a stream went through each step between being configured and sending its first
+ * byte, to tell which step a slow start is spent in. Every phase is only recorded the first time it
+ * is reached after {@link #reset()}.
+ */
+public class StartupTiming {
+
+    public enum Phase {
+        CONFIGURED,
+        PREPARED,
+        CONNECTING,
+        CONNECTED,
+        PLAYING,
+        FIRST_SAMPLE,
+        FIRST_BYTE_SENT
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final AtomicLongArray marks = new AtomicLongArray(PHASES.length);
+
+    void reset() {
+        for (int i = 0; i < PHASES.length; i++) {
+            marks.set(i, 0);
+        }
+    }
+
+    void mark(Phase phase) {
+        marks.compareAndSet(phase.ordinal(), 0, System.nanoTime());
+    }
+
+    public boolean isMarked(Phase phase) {
+        return marks.get(phase.ordinal()) != 0;
+    }
+
+    /**
+     * @return The milliseconds from the stream being configured to the phase, or -1 if either has
+     * not been reached
+     */
+    public long getMillis(Phase phase) {
+        long start = marks.get(Phase.CONFIGURED.ordinal());
+        long mark = marks.get(phase.ordinal());
+        if (start == 0 || mark == 0) {
+            return -1;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(mark - start);
+    }
+
+    /**
+     * @return The time spent in each step that has completed, for example
+     * "PREPARED +120ms, CONNECTING +4000ms, CONNECTED +85ms"
+     */
+    @Override
+    public String toString() {
+        StringBuilder res = new StringBuilder();
+        long previous = marks.get(0);
+        for (int i = 1; i < PHASES.length; i++) {
+            long mark = marks.get(i);
+            if (mark == 0 || previous == 0) {
+                continue;
+            }
+            if (res.length() > 0) {
+                res.append(", ");
+            }
+            res.append(PHASES[i]).append(" +").append(TimeUnit.NANOSECONDS.toMillis(mark - previous)).append("ms");
+            previous = mark;
+        }
+        return res.toString();
+    }
+}
@@ -0,0 +1,86 @@
+package ml.dent.video;
+
+import ml.dent.util.LatencyHistogram;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput and latency of the samples a stream's pipeline produces. Counting a sample never
+ * allocates. Rates are worked out by {@link #tick()}, which should be called about once a second.
+ */
+public class StreamStats {
+
+    private final LongAdder samples = new LongAdder();
+    private final LongAdder bytes   = new LongAdder();
+
+    // From the presentation timestamp of a sample to it reaching the appsink
+    private final LatencyHistogram pipelineLatency = new LatencyHistogram();
+    // From the presentation timestamp of a sample to it being written to the socket of one of the
+    // stream's destinations, renditions keep their own
+    private final LatencyHistogram sendLatency     = new LatencyHistogram();
+
+    private volatile double samplesPerSecond;
+    private volatile double bytesPerSecond;
+
+    // Only touched by tick
+    private long lastTick;
+    private long lastSamples;
+    private long lastBytes;
+
+    void sampleProduced(int size, long pipelineLatencyNanos) {
+        samples.increment();
+        bytes.add(size);
+        pipelineLatency.record(pipelineLatencyNanos);
+    }
+
+    /**
+     * Works out the rates since the last tick
+     */
+    synchronized void tick() {
+        long now = System.nanoTime();
+        long curSamples = samples.sum();
+        long curBytes = bytes.sum();
+        if (lastTick != 0) {
+            double seconds = (now - lastTick) / (double) TimeUnit.SECONDS.toNanos(1);
+            samplesPerSecond = (curSamples - lastSamples) / seconds;
+            bytesPerSecond = (curBytes - lastBytes) / seconds;
+        }
+        lastTick = now;
+        lastSamples = curSamples;
+        lastBytes = curBytes;
+    }
+
+    /**
+     * Clears the rates when the stream stops, the totals keep counting up
+     */
+    synchronized void stopped() {
+        lastTick = 0;
+        samplesPerSecond = 0;
+        bytesPerSecond = 0;
+    }
+
+    public long getSamples() {
+        return samples.sum();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    public double getSamplesPerSecond() {
+        return samplesPerSecond;
+    }
+
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public LatencyHistogram getPipelineLatency() {
+        return pipelineLatency;
+    }
+
+    public LatencyHistogram getSendLatency() {
+        return sendLatency;
+    }
+}
@@ -1,11 +1,28 @@
 package ml.dent.video;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ScheduledFuture;
+import ml.dent.net.OutboundQueue;
 import ml.dent.net.SimpleNetworkClient;
 import org.freedesktop.gstreamer.*;
 import org.freedesktop.gstreamer.elements.AppSink;
 
 import java.net.URI;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 public class VideoServer extends SimpleNetworkClient {
 
@@ -13,6 +30,9 @@ public class VideoServer extends SimpleNetworkClient {
         WEBCAM,
         IP_CAMERA,
         TCPSRC,
+        TEST,
+        FILE,
+        COMPOSITE,
         DEFAULT
     }
 
@@ -48,6 +68,9 @@ public class VideoServer extends SimpleNetworkClient {
     private VideoServer(String host, int port, Camera type) {
         super(host, port, '1', true);
         cameraType = type;
+        setAutoReconnect(true);
+        destinations.add(primary);
+        primary.setWriteLatencyHistogram(stats.getSendLatency());
     }
 
     public String getSource() {
@@ -69,6 +92,121 @@ public class VideoServer extends SimpleNetworkClient {
         cameraType = Camera.TCPSRC;
     }
 
+    /**
+     * Uses a generated test picture as the camera source, produced at the rate a camera would
+     * produce it. Useful for load testing without cameras.
+     *
+     * @param pattern The videotestsrc pattern to draw, for example "smpte" or "ball", null for the
+     *                default
+     */
+    public void setTestSource(String pattern) {
+        source = pattern;
+        cameraType = Camera.TEST;
+    }
+
+    /**
+     * Replays a recorded MPEG-TS or raw H.264 byte-stream file as the camera source. Files ending in
+     * .ts, .m2ts or .mts are demuxed as MPEG-TS. Together with {@link #setH264Encoded(boolean)}
+     * the recorded stream is sent without being encoded again. A raw H.264 file has no timestamps,
+     * so it needs the framerate of the {@link #getCaptureSettings() capture settings} to be played
+     * back in real time, unless its stream carries its own timing.
+     */
+    public void setFileSource(String path) {
+        source = path;
+        cameraType = Camera.FILE;
+    }
+
+    // Only used by file sources
+    private boolean realtime = true;
+    private boolean loop;
+
+    /**
+     * If set, a file source, or a composite stream with file inputs, is played back at the rate it
+     * was recorded at. Otherwise it is read as fast as the pipeline and the {@link BackpressurePolicy}
+     * allow, use {@link BackpressurePolicy#BLOCK} to measure throughput without dropping samples.
+     * Applies the next time the pipeline is prepared.
+     */
+    public void setRealtime(boolean set) {
+        realtime = set;
+    }
+
+    public boolean getRealtime() {
+        return realtime;
+    }
+
+    /**
+     * If set, a file source starts over from the beginning when it reaches the end, instead of
+     * ending the stream. Applies the next time the pipeline is prepared.
+     */
+    public void setLoop(boolean set) {
+        loop = set;
+    }
+
+    public boolean getLoop() {
+        return loop;
+    }
+
+    public static final int MAX_COMPOSITE_INPUTS = 4;
+
+    public static final int DEFAULT_TILE_WIDTH  = 640;
+    public static final int DEFAULT_TILE_HEIGHT = 360;
+
+    private List<CompositeInput> compositeInputs = Collections.emptyList();
+
+    private int tileWidth  = DEFAULT_TILE_WIDTH;
+    private int tileHeight = DEFAULT_TILE_HEIGHT;
+
+    /**
+     * Tiles two to four sources into a single picture, two side by side and three or four in a
+     * grid, which is encoded and sent once. Composite streams are always encoded.
+     */
+    public void setCompositeSource(List<CompositeInput> inputs) {
+        if (inputs.size() < 2 || inputs.size() > MAX_COMPOSITE_INPUTS) {
+            throw new IllegalArgumentException("A composite stream takes 2 to " + MAX_COMPOSITE_INPUTS + " inputs");
+        }
+        compositeInputs = Collections.unmodifiableList(new ArrayList<>(inputs));
+        source = null;
+        cameraType = Camera.COMPOSITE;
+        h264Encoded = false;
+    }
+
+    public List<CompositeInput> getCompositeInputs() {
+        return compositeInputs;
+    }
+
+    private boolean hasFileInputs() {
+        if (cameraType != Camera.COMPOSITE) {
+            return false;
+        }
+        for (CompositeInput input : compositeInputs) {
+            if (input.getCameraType() == Camera.FILE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sets the size every input of a composite stream is scaled to, keeping its aspect ratio. The
+     * composite picture is two tiles wide and one or two tiles high. Applies the next time the
+     * pipeline is prepared.
+     */
+    public void setTileSize(int width, int height) {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("Tile size must be positive");
+        }
+        tileWidth = width;
+        tileHeight = height;
+    }
+
+    public int getTileWidth() {
+        return tileWidth;
+    }
+
+    public int getTileHeight() {
+        return tileHeight;
+    }
+
     /**
      * Uses the default webcam as the camera source
      */
@@ -88,13 +226,450 @@ public class VideoServer extends SimpleNetworkClient {
         return cameraType;
     }
 
-    private Pipeline pipeline;
+    private final CaptureSettings captureSettings = new CaptureSettings();
+
+    /**
+     * @return The format cameras and the test source are asked to capture in, changes to it apply
+     * the next time the pipeline is prepared
+     */
+    public CaptureSettings getCaptureSettings() {
+        return captureSettings;
+    }
+
+    private final RegionSettings regionSettings = new RegionSettings();
+
+    /**
+     * @return The part of the picture that is encoded and the size it is encoded at, changes to it
+     * apply the next time the pipeline is prepared. Use {@link #updateRegion(RegionSettings)} to
+     * change a running stream.
+     */
+    public RegionSettings getRegionSettings() {
+        return regionSettings;
+    }
+
+    /**
+     * Changes the cropping and scaling of a stream that may already be running, without stopping
+     * it. The encoder starts over at the new size with a keyframe.
+     *
+     * @param changes The settings to change, anything not set is left as it is
+     */
+    public synchronized void updateRegion(RegionSettings changes) {
+        regionSettings.merge(changes);
+        if (pipeline == null || h264Encoded) {
+            return;
+        }
+        Element crop = pipeline.getElementByName("crop");
+        if (changes.getCropLeft() != null) {
+            crop.set("left", changes.getCropLeft());
+        }
+        if (changes.getCropRight() != null) {
+            crop.set("right", changes.getCropRight());
+        }
+        if (changes.getCropTop() != null) {
+            crop.set("top", changes.getCropTop());
+        }
+        if (changes.getCropBottom() != null) {
+            crop.set("bottom", changes.getCropBottom());
+        }
+        if (changes.getScaleWidth() != null || changes.getScaleHeight() != null) {
+            pipeline.getElementByName("scale_caps").set("caps", Caps.fromString(regionSettings.toScaleCaps()));
+        }
+    }
+
+    private final EncoderSettings encoderSettings = new EncoderSettings();
+
+    /**
+     * @return The settings the encoder is built with, changes to them apply the next time the
+     * pipeline is prepared. Use {@link #updateEncoder(EncoderSettings)} to change a running stream.
+     */
+    public EncoderSettings getEncoderSettings() {
+        return encoderSettings;
+    }
+
+    /**
+     * Changes the encoder settings of a stream that may already be running, without stopping it.
+     * The bitrate is applied to a playing encoder right away. A new keyframe interval restarts the
+     * encoder in place, which then starts over with a keyframe. x264enc only takes its other
+     * settings before it starts, so those apply the next time the stream is started. A pipeline that
+     * is only prepared is rebuilt with every change.
+     *
+     * @param changes The settings to change, anything not set is left as it is
+     * @return The names of the settings that could not be applied to the running encoder
+     */
+    public synchronized List<String> updateEncoder(EncoderSettings changes) {
+        encoderSettings.merge(changes);
+        List<String> deferred = new ArrayList<>();
+        if (pipeline == null || h264Encoded || !changes.isSet()) {
+            return deferred;
+        }
+        if (!pipeline.isPlaying()) {
+            stopStream();
+            preparePipeline();
+            return deferred;
+        }
+        Element encoder = pipeline.getElementByName("encoder");
+        if (changes.getBitrate() != null) {
+            encoder.set("bitrate", changes.getBitrate());
+        }
+        if (changes.getSpeedPreset() != null) {
+            deferred.add("speedPreset");
+        }
+        if (changes.getKeyIntMax() != null && !restartEncoder(encoder, changes.getKeyIntMax())) {
+            deferred.add("keyIntMax");
+        }
+        if (changes.getThreads() != null) {
+            deferred.add("encoderThreads");
+        }
+        if (changes.getSlicedThreads() != null) {
+            deferred.add("slicedThreads");
+        }
+        if (changes.getRateControl() != null) {
+            deferred.add("rateControl");
+        }
+        return deferred;
+    }
+
+    // x264enc only takes a keyframe interval while it is stopped. The stream into the encoder is held
+    // while it goes to READY and back, and it is linked again so it is sent the caps and segment again.
+    private static boolean restartEncoder(Element encoder, int keyIntMax) {
+        Pad sink = encoder.getStaticPad("sink");
+        Pad upstreamPad = sink == null ? null : sink.getPeer();
+        if (upstreamPad == null) {
+            return false;
+        }
+        Element upstream = upstreamPad.getParentElement();
+        // Runs once nothing is being pushed into the encoder, which stays blocked until it returns
+        upstreamPad.block(() -> {
+            upstream.unlink(encoder);
+            encoder.setState(State.READY);
+            encoder.set("key-int-max", keyIntMax);
+            encoder.syncStateWithParent();
+            if (!upstream.link(encoder)) {
+                System.out.println("Failed to link the encoder again after changing its keyframe interval");
+            }
+        });
+        return true;
+    }
+
+    private final OutboundQueue outbound = new OutboundQueue(this);
+    private final Destination   primary  = new Destination(this, outbound);
+
+    // The primary destination is always first, the rest are added with addDestination
+    private final List<Destination> destinations = new CopyOnWriteArrayList<>();
+
+    /**
+     * Sends the encoded stream to another destination as well. The stream is still only encoded
+     * once, every destination gets a reference to the same samples. Destinations added while the
+     * stream is running start receiving from the next sample, but must be connected separately.
+     */
+    public void addDestination(Destination destination) {
+        destination.setWriteLatencyHistogram(stats.getSendLatency());
+        destinations.add(destination);
+    }
+
+    public void removeDestination(Destination destination) {
+        if (destination != primary) {
+            destinations.remove(destination);
+        }
+    }
+
+    /**
+     * @return Every destination this stream is sent to, starting with this server's own connection,
+     * followed by the destinations of its renditions
+     */
+    public List<Destination> getDestinations() {
+        if (renditions.isEmpty()) {
+            return Collections.unmodifiableList(destinations);
+        }
+        List<Destination> res = new ArrayList<>(destinations);
+        for (Rendition rendition : renditions) {
+            res.add(rendition.getDestination());
+        }
+        return Collections.unmodifiableList(res);
+    }
+
+    /**
+     * Connects every destination other than this server's own connection, which is connected with
+     * {@link #connect()}
+     *
+     * @return The connect futures in the same order as {@link #getDestinations()}, without the first
+     */
+    public List<ChannelFuture> connectDestinations() {
+        List<Destination> all = getDestinations();
+        ChannelFuture[] futures = new ChannelFuture[all.size() - 1];
+        for (int i = 1; i < all.size(); i++) {
+            futures[i - 1] = all.get(i).connect();
+        }
+        return Arrays.asList(futures);
+    }
+
+    private final List<Rendition> renditions = new CopyOnWriteArrayList<>();
+
+    /**
+     * Encodes the stream a second time at the rendition's size and settings and sends it to the
+     * rendition's destination. Only streams that encode their video have renditions. Applies the
+     * next time the pipeline is prepared, the destination must be connected like any other.
+     *
+     * @throws IllegalStateException If the stream is already h264 encoded
+     */
+    public void addRendition(Rendition rendition) {
+        if (h264Encoded) {
+            throw new IllegalStateException("Stream is already h264 encoded, it has no encoder to branch renditions off");
+        }
+        rendition.getGopCache().setMaxBytes(gopCache.getMaxBytes());
+        renditions.add(rendition);
+    }
+
+    public void removeRendition(Rendition rendition) {
+        renditions.remove(rendition);
+    }
+
+    public List<Rendition> getRenditions() {
+        return Collections.unmodifiableList(renditions);
+    }
+
+    /**
+     * Sets what happens to new samples when the channel cannot keep up with the stream
+     */
+    public void setBackpressurePolicy(BackpressurePolicy policy) {
+        primary.setBackpressurePolicy(policy);
+    }
+
+    public BackpressurePolicy getBackpressurePolicy() {
+        return primary.getBackpressurePolicy();
+    }
+
+    /**
+     * Sets what happens to the samples produced while a lost connection is being reestablished. The
+     * pipeline keeps running either way.
+     */
+    public void setGapPolicy(GapPolicy policy) {
+        primary.setGapPolicy(policy);
+    }
+
+    public GapPolicy getGapPolicy() {
+        return primary.getGapPolicy();
+    }
+
+    /**
+     * @return The number of bytes of encoded video that were never sent on this server's own
+     * connection
+     */
+    public long getDroppedBytes() {
+        return primary.getDroppedBytes();
+    }
+
+    /**
+     * @return The number of samples that were never sent on this server's own connection. Each
+     * sample holds one encoded frame, or a run of MPEG-TS packets if the source was already h264
+     * encoded.
+     */
+    public long getDroppedFrames() {
+        return primary.getDroppedFrames();
+    }
+
+    private final StreamStats stats = new StreamStats();
+
+    private volatile ScheduledFuture<?> statsTick;
+
+    public StreamStats getStats() {
+        return stats;
+    }
+
+    private final GopCache gopCache = new GopCache();
+
+    private volatile boolean gopCacheEnabled = true;
+
+    /**
+     * If set, the most recent group of pictures is kept and sent ahead of the live stream whenever a
+     * destination connects or reconnects, so it can show a picture without waiting for the next
+     * keyframe. Enabled by default.
+     */
+    public void setGopCacheEnabled(boolean set) {
+        gopCacheEnabled = set;
+        if (!set) {
+            gopCache.clear();
+            for (Rendition rendition : renditions) {
+                rendition.getGopCache().clear();
+            }
+        }
+    }
+
+    public boolean getGopCacheEnabled() {
+        return gopCacheEnabled;
+    }
+
+    /**
+     * Sets the most bytes of video the GOP cache holds. A GOP bigger than this is not cached, so a
+     * destination connecting during it waits for the next keyframe instead.
+     */
+    public void setGopCacheMaxBytes(int maxBytes) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("maxBytes must be positive");
+        }
+        gopCache.setMaxBytes(maxBytes);
+    }
+
+    public int getGopCacheMaxBytes() {
+        return gopCache.getMaxBytes();
+    }
+
+    /**
+     * Closes the connections of every destination, including this server's own. The other
+     * destinations are closed even if this server's own connection is already gone.
+     */
+    @Override
+    public Future<?> disconnect() {
+        disconnectDestinations();
+        return super.disconnect();
+    }
+
+    private void disconnectDestinations() {
+        List<Destination> all = getDestinations();
+        for (int i = 1; i < all.size(); i++) {
+            all.get(i).getClient().disconnect();
+        }
+    }
+
+    private final StartupTiming timing = new StartupTiming();
+
+    /**
+     * @return When this stream went through each step of its last start, since it was configured
+     * or last stopped
+     */
+    public StartupTiming getStartupTiming() {
+        return timing;
+    }
+
+    /**
+     * Marks the stream as configured, which its startup timing is measured from, forgetting the
+     * timing of any previous start. Called again after a stop, so the next start is not timed from
+     * before the previous run. A stream that is never marked is timed from when its pipeline is
+     * first prepared.
+     */
+    public void markConfigured() {
+        timing.reset();
+        timing.mark(StartupTiming.Phase.CONFIGURED);
+    }
+
+    @Override
+    public ChannelFuture connect(ChannelHandler... channelHandlers) {
+        boolean firstConnect = !isReconnecting();
+        ChannelHandler[] handlers = Arrays.copyOf(channelHandlers, channelHandlers.length + (firstConnect ? 2 : 1));
+        handlers[channelHandlers.length] = outbound.newWritabilityHandler();
+        if (firstConnect) {
+            timing.mark(StartupTiming.Phase.CONNECTING);
+            handlers[channelHandlers.length + 1] = new FirstByteHandler();
+        }
+        ChannelFuture cf = super.connect(handlers);
+        if (firstConnect) {
+            cf.addListener(future -> {
+                if (future.isSuccess()) {
+                    timing.mark(StartupTiming.Phase.CONNECTED);
+                }
+            });
+        }
+        return cf;
+    }
+
+    // Records when the first stream data is flushed to the socket, then takes itself out of the way
+    private class FirstByteHandler extends ChannelOutboundHandlerAdapter {
+        private boolean written;
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            written = true;
+            super.write(ctx, msg, promise);
+        }
+
+        @Override
+        public void flush(ChannelHandlerContext ctx) throws Exception {
+            super.flush(ctx);
+            if (written) {
+                timing.mark(StartupTiming.Phase.FIRST_BYTE_SENT);
+                System.out.println("Stream startup timing: " + timing);
+                ctx.pipeline().remove(this);
+            }
+        }
+    }
+
+    private volatile Pipeline pipeline;
+    // Describes the queues of the pipeline
+    private volatile PipelineDescription queues;
+
+    private final Map<PipelineStage, QueueSettings> queueSettings = new EnumMap<>(PipelineStage.class);
+
+    private volatile long latencyBudgetMs = -1;
+
+    /**
+     * Sets the limits of the queues of one stage of the pipeline, applied the next time the pipeline
+     * is prepared
+     */
+    public synchronized void setQueueSettings(PipelineStage stage, QueueSettings settings) {
+        queueSettings.put(stage, settings);
+    }
+
+    public synchronized QueueSettings getQueueSettings(PipelineStage stage) {
+        return queueSettings.get(stage);
+    }
+
+    /**
+     * Sets the most latency the queues of the pipeline may add between them, shared out evenly
+     * between the queues that have no time limit of their own. Queues of raw frames drop their
+     * oldest frames rather than go over their share, unless set otherwise. Applied the next time the
+     * pipeline is prepared.
+     *
+     * @param budgetMs The budget in milliseconds, or -1 for none
+     */
+    public void setLatencyBudget(long budgetMs) {
+        latencyBudgetMs = budgetMs;
+    }
+
+    public long getLatencyBudget() {
+        return latencyBudgetMs;
+    }
+
+    /**
+     * @return How full every queue of the pipeline currently is, or an empty list if there is no
+     * pipeline
+     */
+    public List<QueueLevel> getQueueLevels() {
+        Pipeline pipeline = this.pipeline;
+        PipelineDescription queues = this.queues;
+        List<QueueLevel> levels = new ArrayList<>();
+        if (pipeline == null || queues == null) {
+            return levels;
+        }
+        for (String name : queues.getQueueNames()) {
+            Element queue = pipeline.getElementByName(name);
+            if (queue == null) {
+                continue;
+            }
+            levels.add(new QueueLevel(name, queues.getStage(name),
+                    ((Number) queue.get("current-level-buffers")).longValue(),
+                    ((Number) queue.get("current-level-bytes")).longValue(),
+                    ((Number) queue.get("current-level-time")).longValue()));
+        }
+        return levels;
+    }
 
     public static long startTime = -1;
 
     /**
-     * Starts the video stream by initializing Gstreamer and sends stream over the
-     * network. Blocks until connection is established
+     * Initializes GStreamer for the whole process if it has not been already. Called once at
+     * startup so that no stream pays for it, and again by every stream in case it was not.
+     */
+    public static synchronized void initGstreamer() {
+        if (!Gst.isInitialized()) {
+            System.out.println("Initializing Gstreamer...");
+            Gst.init();
+            System.out.println("Gstreamer initialized");
+        }
+    }
+
+    /**
+     * Starts the video stream, by switching the pipeline to PLAYING if it was already prepared, or
+     * by building it first if it was not. The connection must already be established.
      *
      * @return A message Bus that can be used to track the messages coming out of this video pipeline
      */
@@ -102,52 +677,125 @@ public class VideoServer extends SimpleNetworkClient {
         if (!isConnectionActive()) {
             throw new IllegalStateException("Cannot start stream, connection not ready!");
         }
-        getChannel().closeFuture().addListener((future) -> stopStream());
+        if (streamStarted()) {
+            throw new IllegalStateException("Cannot start stream, already started!");
+        }
+        // With auto reconnect the encoder keeps running through a lost connection, so the picture
+        // comes back as soon as the relay does
+        getChannel().closeFuture().addListener((future) -> {
+            if (!getAutoReconnect()) {
+                stopStream();
+                // Nothing is sent to them anymore, and they would keep reconnecting otherwise
+                disconnectDestinations();
+            }
+        });
+        for (Destination destination : getDestinations()) {
+            destination.open();
+        }
 
-        if (!Gst.isInitialized()) {
-            System.out.println("Initializing Gstreamer...");
-            Gst.init();
-            while (!Gst.isInitialized())
-                ;
-            System.out.println("Gstreamer initialized");
+        Pipeline pipeline = preparePipeline();
+
+        System.out.println("Playing pipeline");
+        pipeline.play();
+        timing.mark(StartupTiming.Phase.PLAYING);
+        // The base time is only known once the pipeline is playing
+        clockChanged = true;
+        ScheduledFuture<?> previousTick = statsTick;
+        if (previousTick != null) {
+            previousTick.cancel(false);
+        }
+        statsTick = getTransportContext().group().scheduleAtFixedRate(stats::tick, 1, 1, TimeUnit.SECONDS);
+
+        return pipeline.getBus();
+    }
+
+    public static final long PREROLL_TIMEOUT_SECONDS = 10;
+
+    /**
+     * Builds the pipeline and prerolls it to PAUSED, so that elements are created, devices are
+     * opened and caps are negotiated before the stream is started. Waits for the preroll to finish,
+     * so a pipeline that cannot run fails here instead of on start. Live sources such as cameras do
+     * not produce anything until the pipeline is playing, so they are only opened. Does nothing if
+     * the pipeline is already prepared or running.
+     *
+     * @return The prepared pipeline
+     * @throws IllegalStateException If the pipeline failed or timed out prerolling, in which case it
+     *                               is disposed of again
+     */
+    public synchronized Pipeline preparePipeline() {
+        if (pipeline != null) {
+            return pipeline;
         }
+        timing.mark(StartupTiming.Phase.CONFIGURED);
+        initGstreamer();
 
         System.out.println("Setting up pipeline");
-        String parseString;
-        switch (cameraType) {
-            case IP_CAMERA:
-                System.out.println("IP Camera");
-                parseString = "urisourcebin uri=" + source;
-                parseString += " ! queue ! rtpjitterbuffer ! queue ! rtph264depay";
-                break;
-            case WEBCAM:
-                System.out.println("Webcam");
-                parseString = "v4l2src device=" + source;
-                break;
-            case TCPSRC:
-                System.out.println("Network source");
-                int colonIndex = source.indexOf(":");
-                String host = source.substring(0, colonIndex);
-                String port = source.substring(colonIndex + 1);
-                parseString = "tcpclientsrc host=" + host + " port=" + port;
-                break;
-            default:
-                parseString = "v4l2src";
+        PipelineDescription description = new PipelineDescription();
+        if (cameraType == Camera.COMPOSITE) {
+            System.out.println("Composite of " + compositeInputs.size() + " sources");
+            description.add(compositor());
+        } else {
+            addSource(description, "file", cameraType, source, h264Encoded, captureSettings.getFramerate());
+        }
+
+        // Only cameras and the test source can be asked for a format, everything else is already encoded
+        boolean capture = cameraType == Camera.WEBCAM || cameraType == Camera.DEFAULT || cameraType == Camera.TEST;
+        String caps = capture ? captureSettings.toPipeline(h264Encoded) : null;
+        if (caps != null) {
+            description.add(caps);
         }
 
         if (h264Encoded) {
             System.out.println("Stream already h.264 encoded, stripping container");
-            parseString += " ! h264parse ! queue ! mpegtsmux";
+            description.add("h264parse").queue(PipelineStage.OUTPUT).add("mpegtsmux");
         } else {
             System.out.println("Encoding stream");
-            parseString += " ! queue ! decodebin ! queue ! videoconvert ! queue ! x264enc tune=\"zerolatency\"";
+            // The test source always produces raw video, and negotiates I420, the encoder's preferred
+            // format, if it is not told otherwise
+            boolean raw = cameraType == Camera.TEST || cameraType == Camera.COMPOSITE || (capture && captureSettings.isRaw());
+            boolean encoderFormat = (capture && captureSettings.isEncoderFormat())
+                    || (cameraType == Camera.TEST && captureSettings.getFormat() == null);
+            if (!raw) {
+                description.queue(PipelineStage.SOURCE).add("decodebin");
+            }
+            if (!raw || !encoderFormat) {
+                description.queue(raw ? PipelineStage.SOURCE : PipelineStage.DECODE).add("videoconvert");
+            }
+            if (raw && encoderFormat) {
+                System.out.println("Capturing in a format the encoder takes, skipping decode and conversion");
+            }
+            description.add(regionSettings.toCropPipeline());
+            if (renditions.isEmpty()) {
+                description.add(regionSettings.toScalePipeline());
+                description.queue(PipelineStage.ENCODE).add(encoderSettings.toPipeline());
+            } else {
+                // Every rendition branches off here, and scales and encodes on a thread of its own
+                description.add("tee name=split");
+                description.queue(PipelineStage.ENCODE).add(regionSettings.toScalePipeline()).add(encoderSettings.toPipeline());
+            }
+        }
+        // Live sources are already paced, only files played back in real time need the sink to wait. A
+        // composite of nothing but files would otherwise be mixed and encoded as fast as it can be.
+        boolean sync = realtime && (cameraType == Camera.FILE || hasFileInputs());
+        description.queue(PipelineStage.OUTPUT).add("appsink name=sink sync=" + sync + " emit-signals=false max-buffers="
+                + sinkMaxBuffers + " drop=" + sinkDrop);
+        if (cameraType == Camera.COMPOSITE) {
+            addCompositeInputs(description);
+        }
+        if (h264Encoded && !renditions.isEmpty()) {
+            System.out.println("Stream already h.264 encoded, renditions are not sent");
+        } else {
+            addRenditions(description);
         }
-        parseString += " ! queue ! appsink name=sink sync=false";
-//		parseString += "! queue ! tcpserversink host=0.0.0.0 port=1111";
 
-        pipeline = (Pipeline) Gst.parseLaunch(parseString);
+        String parseString = description.build(queueSettings, latencyBudgetMs);
+        System.out.println(parseString);
+        Pipeline pipeline = (Pipeline) Gst.parseLaunch(parseString);
+        description.applyProperties(pipeline);
+        queues = description;
 
         pipeline.getBus().connect((Bus.ERROR) (source, code, message) -> {
+            lastError = source.getName() + ": " + message;
             System.out.println("Error Source: " + source.getName());
             System.out.println("Error Code: " + code);
             System.out.println("Error Message: " + message);
@@ -157,60 +805,404 @@ public class VideoServer extends SimpleNetworkClient {
             System.out.println("Warn Code: " + code);
             System.out.println("Warn Message: " + message);
         });
+        if (cameraType == Camera.FILE) {
+            boolean loop = this.loop;
+            pipeline.getBus().connect((Bus.EOS) source -> {
+                if (loop) {
+                    // A flushing seek also resets the running time, so real time pacing carries on
+                    System.out.println("End of file, starting over");
+                    pipeline.seek(0, TimeUnit.NANOSECONDS);
+                } else {
+                    System.out.println("End of file");
+                }
+            });
+        }
 
+        // A preroll sample is handed over again as the first sample once the pipeline plays, so only
+        // samples are pulled
+        boolean loop = cameraType == Camera.FILE && this.loop;
+        List<Thread> threads = new ArrayList<>();
         AppSink sink = (AppSink) pipeline.getElementByName("sink");
-        sink.set("emit-signals", true);
-        sink.connect((AppSink.NEW_SAMPLE) elem -> {
-            Sample sample = elem.pullSample();
-            return getFlowReturn(sample);
-        });
-        sink.connect((AppSink.NEW_PREROLL) elem -> {
-            Sample sample = elem.pullPreroll();
-            return getFlowReturn(sample);
-        });
+        threads.add(new Thread(() -> drain(sink, loop, null), "video-drain-" + getHost() + ":" + getPort()));
+        for (int i = 0; i < renditions.size() && !h264Encoded; i++) {
+            Rendition rendition = renditions.get(i);
+            AppSink renditionSink = (AppSink) pipeline.getElementByName("sink_" + (i + 1));
+            threads.add(new Thread(() -> drain(renditionSink, loop, rendition),
+                    "video-drain-" + getHost() + ":" + getPort() + "-" + (i + 1)));
+        }
+        drainThreads = threads;
+        for (Thread thread : threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
 
-        System.out.println("Playing pipeline");
-        pipeline.play();
+        System.out.println("Prerolling pipeline");
+        lastError = null;
+        this.pipeline = pipeline;
+        StateChangeReturn ret = pipeline.pause();
+        boolean timedOut = false;
+        if (ret == StateChangeReturn.ASYNC) {
+            // Only the current and pending state are reported, the preroll is done once nothing is
+            // pending. A failed preroll can leave PAUSED pending as well, but has posted an error.
+            State[] states = new State[2];
+            pipeline.getState(TimeUnit.SECONDS.toNanos(PREROLL_TIMEOUT_SECONDS), states);
+            timedOut = states[1] != State.VOID_PENDING && lastError == null;
+            boolean prerolled = states[0] == State.PAUSED && states[1] == State.VOID_PENDING;
+            ret = prerolled ? StateChangeReturn.SUCCESS : StateChangeReturn.FAILURE;
+        }
+        // Live sources have nothing to preroll, reaching PAUSED is all they do
+        if (ret != StateChangeReturn.SUCCESS && ret != StateChangeReturn.NO_PREROLL) {
+            String reason = timedOut ? "timed out prerolling pipeline" : "failed to preroll pipeline";
+            String error = lastError;
+            stopStream();
+            throw new IllegalStateException(error == null ? reason : reason + ", " + error);
+        }
+        timing.mark(StartupTiming.Phase.PREPARED);
+        return pipeline;
+    }
 
-        return pipeline.getBus();
+    // The last error posted by the pipeline, reported if it fails to preroll
+    private volatile String lastError;
+
+    /**
+     * Adds the elements that read from a source, up to where it is decoded or parsed
+     *
+     * @param name      The name of the source element of a file, which its path is set on
+     * @param encoded   Whether the source is expected to deliver H.264, which only matters for files
+     * @param framerate The framerate of a raw H.264 file, or null if it is left to the file
+     */
+    private static void addSource(PipelineDescription description, String name, Camera cameraType, String source,
+                                  boolean encoded, Integer framerate) {
+        switch (cameraType) {
+            case IP_CAMERA:
+                System.out.println("IP Camera");
+                description.add("urisourcebin uri=" + source);
+                description.queue(PipelineStage.SOURCE).add("rtpjitterbuffer");
+                description.queue(PipelineStage.SOURCE).add("rtph264depay");
+                break;
+            case WEBCAM:
+                System.out.println("Webcam");
+                description.add("v4l2src device=" + source);
+                break;
+            case TCPSRC:
+                System.out.println("Network source");
+                int colonIndex = source.indexOf(":");
+                String host = source.substring(0, colonIndex);
+                String port = source.substring(colonIndex + 1);
+                description.add("tcpclientsrc host=" + host + " port=" + port);
+                break;
+            case TEST:
+                System.out.println("Test source");
+                description.add("videotestsrc is-live=true" + (source == null ? "" : " pattern=" + source));
+                break;
+            case FILE:
+                System.out.println("File source");
+                // Any path is allowed, so it is kept out of the launch description
+                description.add("filesrc name=" + name).set(name, "location", source);
+                // decodebin finds the container on its own
+                if (encoded && isTransportStream(source)) {
+                    description.add("tsdemux");
+                }
+                if (isRawH264(source, encoded)) {
+                    if (framerate != null) {
+                        // A byte stream has no timestamps of its own, the parser works them out from the framerate
+                        description.add("capsfilter caps=\"video/x-h264,stream-format=byte-stream,framerate=" + framerate + "/1\"");
+                    } else {
+                        System.out.println("Raw H.264 file without a framerate, it is only paced if it carries its own timing");
+                    }
+                }
+                break;
+            default:
+                description.add("v4l2src");
+        }
+    }
+
+    /**
+     * @return The compositor element with the position of every input's tile, named "mix"
+     */
+    private String compositor() {
+        StringBuilder res = new StringBuilder("compositor name=mix background=black");
+        for (int i = 0; i < compositeInputs.size(); i++) {
+            res.append(" sink_").append(i).append("::xpos=").append(i % 2 * tileWidth);
+            res.append(" sink_").append(i).append("::ypos=").append(i / 2 * tileHeight);
+        }
+        return res.toString();
+    }
+
+    /**
+     * Adds a branch for every input of a composite stream, each decoded, scaled down to its tile
+     * and fed to the compositor
+     */
+    private void addCompositeInputs(PipelineDescription description) {
+        for (int i = 0; i < compositeInputs.size(); i++) {
+            CompositeInput input = compositeInputs.get(i);
+            description.branch();
+            addSource(description, "file_" + i, input.getCameraType(), input.getSource(), false, captureSettings.getFramerate());
+            if (input.getCameraType() != Camera.TEST) {
+                description.queue(PipelineStage.SOURCE).add("decodebin");
+            }
+            description.queue(PipelineStage.DECODE).add("videoconvert").add("videoscale")
+                    .add("capsfilter caps=\"video/x-raw,width=" + tileWidth + ",height=" + tileHeight + ",pixel-aspect-ratio=1/1\"")
+                    .add("mix.sink_" + i);
+        }
+    }
+
+    /**
+     * Adds a branch off the tee for every rendition, each scaled, encoded and handed to an appsink
+     * of its own. Encoders and sinks are named after the rendition's position, starting at 1.
+     */
+    private void addRenditions(PipelineDescription description) {
+        for (int i = 0; i < renditions.size(); i++) {
+            Rendition rendition = renditions.get(i);
+            description.branch().add("split.");
+            description.queue(PipelineStage.ENCODE).add("videoscale")
+                    .add("capsfilter caps=\"" + rendition.toScaleCaps() + "\"")
+                    .add(rendition.getEncoderSettings().toPipeline("encoder_" + (i + 1)));
+            description.queue(PipelineStage.OUTPUT).add("appsink name=sink_" + (i + 1) + " sync=false emit-signals=false max-buffers="
+                    + sinkMaxBuffers + " drop=" + sinkDrop);
+        }
+    }
+
+    /**
+     * @return Whether the source is a raw H.264 file that is played back in real time without a
+     * framerate to go by. Such a file is only paced if its stream carries timing information of its
+     * own, which many recordings do not.
+     */
+    public boolean isUnpacedFile() {
+        return cameraType == Camera.FILE && realtime && captureSettings.getFramerate() == null && isRawH264(source, h264Encoded);
+    }
+
+    // Files sent as they are count as raw H.264 unless they are MPEG-TS, decoded files go by their extension
+    private static boolean isRawH264(String path, boolean encoded) {
+        if (encoded) {
+            return !isTransportStream(path);
+        }
+        String lower = path.toLowerCase();
+        return lower.endsWith(".h264") || lower.endsWith(".264");
+    }
+
+    private static boolean isTransportStream(String path) {
+        String lower = path.toLowerCase();
+        return lower.endsWith(".ts") || lower.endsWith(".m2ts") || lower.endsWith(".mts");
+    }
+
+    public static final int DEFAULT_SINK_MAX_BUFFERS = 8;
+
+    private int     sinkMaxBuffers = DEFAULT_SINK_MAX_BUFFERS;
+    private boolean sinkDrop;
+
+    // Cleared when the stream stops, which tells the drain threads to finish
+    private volatile List<Thread> drainThreads = Collections.emptyList();
+
+    /**
+     * Sets how many samples the appsink holds for the drain thread. Once it is full the pipeline
+     * waits for the drain thread, unless dropping is enabled. Applies the next time the pipeline
+     * is prepared.
+     */
+    public void setSinkMaxBuffers(int maxBuffers) {
+        if (maxBuffers < 1) {
+            throw new IllegalArgumentException("Sink max buffers must be positive");
+        }
+        sinkMaxBuffers = maxBuffers;
     }
 
-    private static final Object lockObject = new Object();
+    public int getSinkMaxBuffers() {
+        return sinkMaxBuffers;
+    }
 
-    private FlowReturn getFlowReturn(Sample sample) {
-        synchronized (lockObject) {
-            if (isWritable()) {
-                Buffer buf = sample.getBuffer();
-                ByteBuffer byteBuffer = buf.map(false);
+    /**
+     * If set, the appsink drops its oldest samples instead of stalling the pipeline when the drain
+     * thread falls behind. Dropped encoded samples break the picture until the next keyframe, so
+     * this is only worth it when the pipeline must never stall. Applies the next time the pipeline
+     * is prepared.
+     */
+    public void setSinkDrop(boolean set) {
+        sinkDrop = set;
+    }
 
-                byte[] bytes = new byte[byteBuffer.remaining()];
-                byteBuffer.get(bytes);
+    public boolean getSinkDrop() {
+        return sinkDrop;
+    }
 
-                for (byte b : bytes) {
-                    write(b);
+    /**
+     * Pulls samples off an appsink until the pipeline is stopped or the stream ends. Runs on a
+     * thread of its own, so the streaming thread only hands samples over instead of calling into
+     * Java for each of them.
+     *
+     * @param rendition The rendition the sink belongs to, or null for the stream's own sink
+     */
+    private void drain(AppSink sink, boolean loop, Rendition rendition) {
+        while (true) {
+            // Blocks until there is a sample, returns null once the sink is flushing or at EOS
+            Sample sample = sink.pullSample();
+            if (sample != null) {
+                // This thread is the only one emptying the sink, if it died the pipeline would stall
+                // for good once the sink is full
+                try {
+                    if (rendition == null) {
+                        handleSample(sample);
+                    } else {
+                        handleRenditionSample(sample, rendition);
+                    }
+                } catch (Throwable e) {
+                    System.out.println("Failed to forward sample from " + sink.getName() + ", dropping it");
+                    e.printStackTrace();
+                } finally {
+                    sample.dispose();
                 }
+                continue;
+            }
+            if (!drainThreads.contains(Thread.currentThread()) || (!loop && sink.isEOS())) {
+                return;
+            }
+            // Flushing, or waiting for the seek back to the start of the file
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private volatile boolean clockChanged = true;
+
+    // Only touched by the drain thread
+    private Clock clock;
+    private long  baseTime;
+
+    private void handleSample(Sample sample) {
+        timing.mark(StartupTiming.Phase.FIRST_SAMPLE);
+        Buffer buf = sample.getBuffer();
+        long latency = pipelineLatency(buf.getPresentationTimestamp());
+        ByteBuffer byteBuffer = buf.map(false);
+        try {
+            stats.sampleProduced(byteBuffer.remaining(), latency);
+            forward(byteBuffer, System.nanoTime() - latency);
+        } finally {
+            buf.unmap();
+        }
+    }
+
+    // The pipeline latency is only worked out for the stream's own samples, so the send latency of a
+    // rendition is measured from when its sample was pulled
+    private void handleRenditionSample(Sample sample, Rendition rendition) {
+        Buffer buf = sample.getBuffer();
+        ByteBuffer byteBuffer = buf.map(false);
+        try {
+            forward(byteBuffer, System.nanoTime(), rendition.getTargets(), gopCacheEnabled ? rendition.getGopCache() : null);
+        } finally {
+            buf.unmap();
+        }
+    }
 
-                buf.unmap();
+    /**
+     * @return How long ago the sample with the given presentation timestamp should have been
+     * presented, or 0 if that cannot be told
+     */
+    private long pipelineLatency(long pts) {
+        Pipeline pipeline = this.pipeline;
+        if (pts == ClockTime.NONE || pipeline == null) {
+            return 0;
+        }
+        if (clockChanged) {
+            // Fetched once instead of for every sample, since each call creates a new wrapper
+            clockChanged = false;
+            clock = pipeline.getClock();
+            baseTime = pipeline.getBaseTime();
+        }
+        if (clock == null) {
+            return 0;
+        }
+        long runningTime = clock.getTime() - baseTime;
+        return Math.max(0, runningTime - pts);
+    }
+
+    /**
+     * Copies a mapped sample into a single pooled direct buffer and publishes it to the outbound
+     * queue of every destination, each channel's event loop takes care of writing and flushing it.
+     * The GStreamer buffer can be unmapped as soon as this returns, the copy is released once the
+     * last destination and the GOP cache are done with it. What happens when a queue is full is up to the destination's
+     * {@link BackpressurePolicy}, and what happens while its connection is down is up to its
+     * {@link GapPolicy}.
+     *
+     * @param timestamp The {@link System#nanoTime()} the sample should have been presented at, which
+     *                  its send latency is measured from
+     */
+    void forward(ByteBuffer data, long timestamp) {
+        forward(data, timestamp, destinations, gopCacheEnabled ? gopCache : null);
+    }
+
+    private void forward(ByteBuffer data, long timestamp, List<Destination> destinations, GopCache cache) {
+        int size = data.remaining();
+        if (size == 0) {
+            return;
+        }
+        ByteBuf out = null;
+        if (cache != null) {
+            // Cached even while nothing is connected, so the first connection starts with a picture
+            out = getAllocator().directBuffer(size, size);
+            out.writeBytes(data);
+            cache.add(out);
+        }
+        for (Destination destination : destinations) {
+            if (!destination.accepts(size)) {
+                continue;
             }
-            sample.dispose();
-            return FlowReturn.OK;
+            if (out == null) {
+                out = getAllocator().directBuffer(size, size);
+                out.writeBytes(data);
+            }
+            // Each destination reads through its own indices, but they all share the same memory
+            destination.send(out.retainedDuplicate(), cache, timestamp);
+        }
+        if (out != null) {
+            out.release();
         }
     }
 
     public boolean streamStarted() {
+        Pipeline pipeline = this.pipeline;
         if (pipeline == null) {
             return false;
         }
         return pipeline.isPlaying();
     }
 
-    public void stopStream() {
+    /**
+     * Stops the stream and disposes of the pipeline, whether it was running or only prepared
+     */
+    public synchronized void stopStream() {
         if (pipeline == null) {
             return;
         }
+        for (Destination destination : getDestinations()) {
+            destination.close();
+        }
+        List<Thread> draining = drainThreads;
+        drainThreads = Collections.emptyList();
         pipeline.stop();
+        // Stopping the pipeline wakes the drain threads, they have to be done before the pipeline is closed
+        try {
+            for (Thread thread : draining) {
+                thread.join(TimeUnit.SECONDS.toMillis(1));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        gopCache.clear();
+        for (Rendition rendition : renditions) {
+            rendition.getGopCache().clear();
+        }
+        ScheduledFuture<?> tick = statsTick;
+        if (tick != null) {
+            tick.cancel(false);
+            statsTick = null;
+        }
+        stats.stopped();
+        clockChanged = true;
         pipeline.close();
         pipeline = null;
+        queues = null;
 //        Gst.deinit();
 //        while (Gst.isInitialized())
 //            ;
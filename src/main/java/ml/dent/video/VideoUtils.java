@@ -0,0 +1,95 @@
+package ml.dent.video;
+
+import io.netty.buffer.ByteBuf;
+
+public class VideoUtils {
+
+    private static final int TS_PACKET_SIZE = 188;
+    private static final int TS_SYNC_BYTE   = 0x47;
+
+    private static final int NAL_SLICE = 1;
+    private static final int NAL_IDR   = 5;
+    private static final int NAL_SPS   = 7;
+
+    private static final int TS_PAT_PID = 0;
+
+    private VideoUtils() {
+    }
+
+    /**
+     * Checks whether a sample produced by the pipeline is a point a decoder can start from. Handles
+     * both the raw H.264 byte-stream x264enc produces and the MPEG-TS packets mpegtsmux produces.
+     * Reads the buffer in place without changing its indices.
+     */
+    public static boolean isKeyframe(ByteBuf buf) {
+        int start = buf.readerIndex();
+        int length = buf.readableBytes();
+        if (length >= TS_PACKET_SIZE && length % TS_PACKET_SIZE == 0 && buf.getUnsignedByte(start) == TS_SYNC_BYTE) {
+            return isTsRandomAccess(buf, start, length);
+        }
+        return isH264Keyframe(buf, start, length);
+    }
+
+    /**
+     * Checks whether a sample carries what a decoder needs before it can decode anything: the
+     * sequence parameter set of a raw H.264 byte-stream, or the program association table of an
+     * MPEG-TS stream. Reads the buffer in place without changing its indices.
+     */
+    public static boolean hasStreamHeaders(ByteBuf buf) {
+        int start = buf.readerIndex();
+        int length = buf.readableBytes();
+        if (length >= TS_PACKET_SIZE && length % TS_PACKET_SIZE == 0 && buf.getUnsignedByte(start) == TS_SYNC_BYTE) {
+            for (int packet = start; packet < start + length; packet += TS_PACKET_SIZE) {
+                int pid = buf.getUnsignedShort(packet + 1) & 0x1fff;
+                if (pid == TS_PAT_PID) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return firstNalType(buf, start, length, NAL_SPS) == NAL_SPS;
+    }
+
+    private static boolean isTsRandomAccess(ByteBuf buf, int start, int length) {
+        for (int packet = start; packet < start + length; packet += TS_PACKET_SIZE) {
+            int adaptationControl = (buf.getUnsignedByte(packet + 3) >> 4) & 0x3;
+            // Adaptation field present and long enough to hold the flags byte
+            if ((adaptationControl & 0x2) != 0 && buf.getUnsignedByte(packet + 4) > 0) {
+                // random_access_indicator
+                if ((buf.getUnsignedByte(packet + 5) & 0x40) != 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isH264Keyframe(ByteBuf buf, int start, int length) {
+        return firstNalType(buf, start, length, NAL_IDR) == NAL_IDR;
+    }
+
+    // Walks the NAL units up to the first slice, x264 puts any parameter sets and SEI in front of it.
+    // Returns the wanted type if a NAL unit of that type comes first, or -1.
+    private static int firstNalType(ByteBuf buf, int start, int length, int wanted) {
+        int end = start + length;
+        int zeros = 0;
+        for (int i = start; i < end - 1; i++) {
+            byte b = buf.getByte(i);
+            if (b == 0) {
+                zeros++;
+                continue;
+            }
+            if (b == 1 && zeros >= 2) {
+                int type = buf.getByte(i + 1) & 0x1f;
+                if (type == wanted) {
+                    return type;
+                }
+                if (type >= NAL_SLICE && type <= NAL_IDR) {
+                    return -1;
+                }
+            }
+            zeros = 0;
+        }
+        return -1;
+    }
+}
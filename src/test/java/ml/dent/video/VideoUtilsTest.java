@@ -0,0 +1,148 @@
+package ml.dent.video;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VideoUtilsTest {
+
+    private static final byte[] AUD = {0, 0, 0, 1, 0x09, (byte) 0xf0};
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xc0, 0x1f};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+    private static final byte[] SEI = {0, 0, 0, 1, 0x06, 0x05, 0x01, (byte) 0x80};
+    private static final byte[] IDR = {0, 0, 0, 1, 0x65, (byte) 0x88, (byte) 0x84, 0x00};
+    private static final byte[] P   = {0, 0, 0, 1, 0x41, (byte) 0x9a, 0x02, 0x00};
+
+    private static final int TS_PACKET_SIZE = 188;
+
+    @Test
+    public void keyframeWithParameterSets() {
+        ByteBuf sample = sample(AUD, SPS, PPS, SEI, IDR);
+        assertTrue(VideoUtils.isKeyframe(sample));
+        assertTrue(VideoUtils.hasStreamHeaders(sample));
+    }
+
+    @Test
+    public void keyframeWithoutParameterSets() {
+        ByteBuf sample = sample(IDR);
+        assertTrue(VideoUtils.isKeyframe(sample));
+        assertFalse(VideoUtils.hasStreamHeaders(sample));
+    }
+
+    @Test
+    public void threeByteStartCode() {
+        ByteBuf sample = sample(Arrays.copyOfRange(SPS, 1, SPS.length), Arrays.copyOfRange(IDR, 1, IDR.length));
+        assertTrue(VideoUtils.isKeyframe(sample));
+        assertTrue(VideoUtils.hasStreamHeaders(sample));
+    }
+
+    @Test
+    public void deltaFrame() {
+        ByteBuf sample = sample(AUD, P);
+        assertFalse(VideoUtils.isKeyframe(sample));
+        assertFalse(VideoUtils.hasStreamHeaders(sample));
+    }
+
+    @Test
+    public void onlyTheFirstSliceCounts() {
+        // Nothing past the first slice is looked at, it could be slice data
+        assertFalse(VideoUtils.isKeyframe(sample(P, IDR)));
+        assertFalse(VideoUtils.hasStreamHeaders(sample(P, SPS)));
+    }
+
+    @Test
+    public void lengthPrefixedIsNotDetected() {
+        // avc stream-format, which the encoder's output caps rule out
+        byte[] idr = Arrays.copyOf(IDR, IDR.length);
+        idr[3] = (byte) (IDR.length - 4);
+        assertFalse(VideoUtils.isKeyframe(sample(idr)));
+    }
+
+    @Test
+    public void emptyAndTruncated() {
+        assertFalse(VideoUtils.isKeyframe(Unpooled.EMPTY_BUFFER));
+        assertFalse(VideoUtils.isKeyframe(sample(new byte[]{0, 0, 0, 1})));
+        assertFalse(VideoUtils.hasStreamHeaders(sample(new byte[]{0, 0, 1})));
+    }
+
+    @Test
+    public void readsFromTheReaderIndex() {
+        ByteBuf sample = sample(P, IDR);
+        sample.readerIndex(P.length);
+        assertTrue(VideoUtils.isKeyframe(sample));
+        assertEquals(P.length, sample.readerIndex());
+        assertEquals(P.length + IDR.length, sample.writerIndex());
+    }
+
+    @Test
+    public void tsRandomAccess() {
+        ByteBuf sample = sample(tsPacket(0x100, false), tsPacket(0x100, true));
+        assertTrue(VideoUtils.isKeyframe(sample));
+        assertFalse(VideoUtils.hasStreamHeaders(sample));
+    }
+
+    @Test
+    public void tsWithoutRandomAccess() {
+        ByteBuf sample = sample(tsPacket(0x100, false), tsPacket(0x100, false));
+        assertFalse(VideoUtils.isKeyframe(sample));
+    }
+
+    @Test
+    public void tsPayloadIsNotParsedAsH264() {
+        // The start of an IDR slice inside a packet's payload does not make it a keyframe
+        byte[] packet = tsPacket(0x100, false);
+        // Payload only
+        packet[3] = 0x10;
+        System.arraycopy(IDR, 0, packet, 4, IDR.length);
+        assertFalse(VideoUtils.isKeyframe(sample(packet)));
+    }
+
+    @Test
+    public void tsProgramAssociationTable() {
+        assertTrue(VideoUtils.hasStreamHeaders(sample(tsPacket(0, false), tsPacket(0x100, true))));
+        assertFalse(VideoUtils.hasStreamHeaders(sample(tsPacket(0x1000, false))));
+    }
+
+    @Test
+    public void partialTsPacketIsNotTs() {
+        byte[] packet = tsPacket(0x100, true);
+        assertFalse(VideoUtils.isKeyframe(sample(Arrays.copyOf(packet, TS_PACKET_SIZE - 1))));
+    }
+
+    private static ByteBuf sample(byte[]... parts) {
+        return Unpooled.wrappedBuffer(concat(parts));
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] res = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, res, offset, part.length);
+            offset += part.length;
+        }
+        return res;
+    }
+
+    // A packet with an adaptation field, which sets random_access_indicator if asked to
+    private static byte[] tsPacket(int pid, boolean randomAccess) {
+        byte[] packet = new byte[TS_PACKET_SIZE];
+        Arrays.fill(packet, (byte) 0xff);
+        packet[0] = 0x47;
+        packet[1] = (byte) ((pid >> 8) & 0x1f);
+        packet[2] = (byte) pid;
+        packet[3] = 0x30;
+        packet[4] = 7;
+        packet[5] = (byte) (randomAccess ? 0x40 : 0x00);
+        return packet;
+    }
+}